@@ -0,0 +1,102 @@
+package com.chris.es.jest.benchmark;
+
+import com.chris.es.jest.utils.JestBulkProcessor;
+import com.chris.es.jest.utils.JestProcessor;
+import io.searchbox.client.JestClient;
+import io.searchbox.core.Bulk;
+import io.searchbox.core.Index;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by Chris Chen
+ * 2018/12/22
+ * Explain: 批量保存时构建bulk请求体的耗时
+ * bulkBody: 直接用Bulk.Builder添加Index并渲染请求体
+ * saveAll: JestProcessor.saveAll的完整流程(预序列化、切分、渲染、解析响应) 在调用线程中同步发送
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BulkBodyBenchmark {
+    @Param({"100", "1000", "5000"})
+    public int documents;
+
+    private List<Vehicle> vehicles;
+    private JestProcessor<Vehicle> processor;
+
+    @Setup
+    public void setup() {
+        vehicles = new ArrayList<>(documents);
+        for (int i = 0; i < documents; i++) {
+            vehicles.add(new Vehicle()
+                    .setVin("LAW" + String.format("%014d", i))
+                    .setBatteryName("CATL-NCM811-0" + (i % 4))
+                    .setPlateNo("沪A" + (30000 + i))
+                    .setCity("上海")
+                    .setMileage(12000L + i)
+                    .setSoc(40 + (i % 60) * 1.0)
+                    .setVoltage(355.2)
+                    .setCharging(i % 3 == 0)
+                    .setAlarmLevel(i % 4)
+                    .setTs(1544659200000L + i * 1000L)
+                    .setRemark("BMS上报 第" + i + "帧"));
+        }
+        //每条记录在请求体中占两行
+        JestClient jestClient = new Fixtures.FixtureJestClient(body -> Fixtures.bulkResponse(countLines(body) / 2));
+        processor = new JestProcessor<Vehicle>() {
+            @Override
+            public JestClient getJestClient() {
+                return jestClient;
+            }
+
+            @Override
+            public JestBulkProcessor createBulkProcessor() {
+                return JestBulkProcessor.get(jestClient).setConcurrentRequests(0);
+            }
+        };
+    }
+
+    private static int countLines(String data) {
+        int lines = 0;
+        for (int i = 0; i < data.length(); i++) {
+            if (data.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    @Benchmark
+    public String bulkBody() {
+        Bulk.Builder bulk = new Bulk.Builder();
+        for (Vehicle vehicle : vehicles) {
+            bulk.addAction(new Index.Builder(vehicle).index("vehicle_status").type("status").build());
+        }
+        return bulk.build().getData(Fixtures.GSON);
+    }
+
+    @Benchmark
+    public List<Vehicle> saveAll() throws IOException {
+        processor.saveAll(vehicles, "vehicle_status", "status");
+        return vehicles;
+    }
+}
@@ -0,0 +1,130 @@
+package com.chris.es.jest.benchmark;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.searchbox.action.Action;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.client.JestResultHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Created by Chris Chen
+ * 2018/12/22
+ * Explain: 录制的ES响应数据
+ * search-response.json为10条hit的搜索响应，需要更多hit时循环复制并改写_id
+ */
+
+public class Fixtures {
+    public static final Gson GSON = new Gson();
+
+    public static String searchResponse(int hitCount) {
+        JsonObject response = load("search-response.json");
+        JsonArray recorded = response.getAsJsonObject("hits").getAsJsonArray("hits");
+        JsonArray hits = new JsonArray();
+        for (int i = 0; i < hitCount; i++) {
+            JsonObject hit = new JsonParser().parse(recorded.get(i % recorded.size()).toString()).getAsJsonObject();
+            hit.addProperty("_id", hit.get("_id").getAsString() + "-" + i);
+            hits.add(hit);
+        }
+        response.getAsJsonObject("hits").add("hits", hits);
+        return GSON.toJson(response);
+    }
+
+    public static String extremeResponse() {
+        return GSON.toJson(load("extreme-response.json"));
+    }
+
+    //bulk响应 每条记录都成功
+    public static String bulkResponse(int itemCount) {
+        StringBuilder sb = new StringBuilder(64 + itemCount * 160);
+        sb.append("{\"took\":30,\"errors\":false,\"items\":[");
+        for (int i = 0; i < itemCount; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"index\":{\"_index\":\"vehicle_status\",\"_type\":\"status\",\"_id\":\"AWeX")
+                    .append(i)
+                    .append("\",\"_version\":1,\"_shards\":{\"total\":2,\"successful\":1,\"failed\":0},\"status\":201}}");
+        }
+        return sb.append("]}").toString();
+    }
+
+    private static JsonObject load(String name) {
+        InputStream in = Fixtures.class.getResourceAsStream("/fixtures/" + name);
+        if (in == null) {
+            throw new IllegalStateException("找不到录制数据: " + name);
+        }
+        try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            JsonElement element = new JsonParser().parse(reader);
+            return element.getAsJsonObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 不发送网络请求的JestClient
+     * 执行时渲染请求体(与真实发送时一致)，再由responder根据请求体给出录制的响应
+     * reuseResults为true时每种响应只解析一次，用于只关心请求构建耗时的测试
+     */
+    public static class FixtureJestClient implements JestClient {
+        private final Function<String, String> responder;
+        private final Map<String, JestResult> parsed;
+        private String lastRequestBody;
+
+        public FixtureJestClient(Function<String, String> responder) {
+            this(responder, false);
+        }
+
+        public FixtureJestClient(Function<String, String> responder, boolean reuseResults) {
+            this.responder = responder;
+            this.parsed = reuseResults ? new ConcurrentHashMap<>() : null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T extends JestResult> T execute(Action<T> action) {
+            lastRequestBody = action.getData(GSON);
+            String response = responder.apply(lastRequestBody);
+            if (parsed == null) {
+                return action.createNewElasticSearchResult(response, 200, null, GSON);
+            }
+            return (T) parsed.computeIfAbsent(response, body -> action.createNewElasticSearchResult(body, 200, null, GSON));
+        }
+
+        @Override
+        public <T extends JestResult> void executeAsync(Action<T> action, JestResultHandler<? super T> handler) {
+            handler.completed(execute(action));
+        }
+
+        public String getLastRequestBody() {
+            return lastRequestBody;
+        }
+
+        @Override
+        public void shutdownClient() {
+        }
+
+        @Override
+        public void setServers(Set<String> servers) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.chris.es.jest.benchmark;
+
+import com.chris.es.jest.model.EsSearchParams;
+import com.chris.es.jest.model.PageData;
+import com.chris.es.jest.utils.ESUtils;
+import com.chris.es.jest.utils.StreamingSearch;
+import com.google.common.base.Converter;
+import io.searchbox.client.JestClient;
+import io.searchbox.core.Search;
+import io.searchbox.core.SearchResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by Chris Chen
+ * 2018/12/22
+ * Explain: 把搜索响应解析为实体的耗时
+ * parseResponse: 响应json解析为SearchResult
+ * convertHits: 已解析的SearchResult转换为实体(getHits + converFromHitList)
+ * searchPage: 从发出请求到得到PageData的完整流程
+ * pageDataConvert: PageData.convert转换为另一种实体
+ * streamingParse: 流式解析响应并直接得到实体 对应parseResponse + convertHits
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HitConversionBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int hits;
+
+    private String response;
+    private Search search;
+    private SearchResult parsed;
+    private JestClient jestClient;
+    private EsSearchParams params;
+    private PageData<Vehicle> page;
+    private final Converter<Vehicle, String> vinConverter = new Converter<Vehicle, String>() {
+        @Override
+        protected String doForward(Vehicle vehicle) {
+            return vehicle.getVin();
+        }
+
+        @Override
+        protected Vehicle doBackward(String vin) {
+            return new Vehicle().setVin(vin);
+        }
+    };
+
+    @Setup
+    public void setup() {
+        response = Fixtures.searchResponse(hits);
+        search = new Search.Builder("{\"query\":{\"match_all\":{}}}").addIndex("vehicle_status").addType("status").build();
+        parsed = search.createNewElasticSearchResult(response, 200, null, Fixtures.GSON);
+        jestClient = new Fixtures.FixtureJestClient(body -> response);
+        params = QueryBuildBenchmark.createParams("simple", 0);
+        params.setPageParams(0, hits);
+        page = ESUtils.searchPage(jestClient, params, Vehicle.class);
+    }
+
+    @Benchmark
+    public SearchResult parseResponse() {
+        return search.createNewElasticSearchResult(response, 200, null, Fixtures.GSON);
+    }
+
+    @Benchmark
+    public List<Vehicle> streamingParse() {
+        return new StreamingSearch<>(search, Vehicle.class)
+                .createNewElasticSearchResult(response, 200, null, Fixtures.GSON)
+                .getDataList();
+    }
+
+    @Benchmark
+    public List<Vehicle> convertHits() {
+        return ESUtils.converFromHitList(parsed.getHits(Vehicle.class));
+    }
+
+    @Benchmark
+    public PageData<Vehicle> searchPage() {
+        return ESUtils.searchPage(jestClient, params, Vehicle.class);
+    }
+
+    @Benchmark
+    public PageData<String> pageDataConvert() {
+        return page.convert(vinConverter);
+    }
+}
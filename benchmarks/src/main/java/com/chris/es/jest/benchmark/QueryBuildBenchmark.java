@@ -0,0 +1,94 @@
+package com.chris.es.jest.benchmark;
+
+import com.chris.es.jest.model.EsSearchParams;
+import com.chris.es.jest.utils.ESUtils;
+import com.chris.es.jest.utils.QueryTemplate;
+import io.searchbox.client.JestClient;
+import io.searchbox.core.SearchResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by Chris Chen
+ * 2018/12/22
+ * Explain: 从EsSearchParams构建并渲染查询的耗时
+ * 响应只解析一次并复用，测得的是ESUtils.searchResult中构建、渲染请求体的开销
+ * simple: 两个精确匹配 + 排序
+ * wildcard: 精确匹配 + must/should模糊 + 多字段模糊
+ * full: 上述条件 + 多字段精确 + 区间 + 极值
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBuildBenchmark {
+    @Param({"simple", "wildcard", "full"})
+    public String shape;
+
+    @Param({"true", "false"})
+    public boolean templates;
+
+    private JestClient jestClient;
+    private EsSearchParams params;
+    private int round;
+
+    @Setup
+    public void setup() {
+        String searchResponse = Fixtures.searchResponse(10);
+        String extremeResponse = Fixtures.extremeResponse();
+        jestClient = new Fixtures.FixtureJestClient(body -> body.contains("extreme_") ? extremeResponse : searchResponse, true);
+        QueryTemplate.setEnabled(templates);
+        QueryTemplate.clear();
+        //每次都走完整的极值查询流程
+        ESUtils.setExtremeCacheTtl(0);
+        params = createParams(shape, 0);
+    }
+
+    static EsSearchParams createParams(String shape, int round) {
+        EsSearchParams params = EsSearchParams.get()
+                .setIndexAndType("vehicle_status", "status")
+                .addFieldKV("city", "上海")
+                .addFieldKV("alarmLevel", round % 4)
+                .setSort("ts", false);
+        params.setPageParams(round % 20, 20);
+        if ("simple".equals(shape)) {
+            return params;
+        }
+        params.addMustWildcardField("plateNo", "沪A3" + (round % 10) + "*")
+                .addShouldWildcardField("remark", "*BMS*")
+                .addMultiWildcardFiel("*NCM811*", "batteryName", "remark");
+        if ("wildcard".equals(shape)) {
+            return params;
+        }
+        return params.addMultiFieldKV("LAW0000000000" + (1000 + round % 10), "vin", "plateNo")
+                .addRangeField("mileage", 10000 + round, 90000)
+                .addRangeField("soc", 20.5, null)
+                .addExtremeField("ts", true)
+                .addExtremeField("mileage", false);
+    }
+
+    @Benchmark
+    public SearchResult sameValues() {
+        return ESUtils.searchResult(jestClient, params);
+    }
+
+    //结构相同、值每次不同 模拟真实流量
+    @Benchmark
+    public SearchResult changingValues() {
+        return ESUtils.searchResult(jestClient, createParams(shape, ++round));
+    }
+}
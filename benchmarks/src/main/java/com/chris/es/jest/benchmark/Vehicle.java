@@ -0,0 +1,130 @@
+package com.chris.es.jest.benchmark;
+
+/**
+ * Created by Chris Chen
+ * 2018/12/22
+ * Explain: 基准测试用的实体 与录制数据中的_source对应
+ */
+
+public class Vehicle {
+    private String id;
+    private String vin;
+    private String batteryName;
+    private String plateNo;
+    private String city;
+    private Long mileage;
+    private Double soc;
+    private Double voltage;
+    private Boolean charging;
+    private Integer alarmLevel;
+    private Long ts;
+    private String remark;
+
+    public String getId() {
+        return id;
+    }
+
+    public Vehicle setId(String id) {
+        this.id = id;
+        return this;
+    }
+
+    public String getVin() {
+        return vin;
+    }
+
+    public Vehicle setVin(String vin) {
+        this.vin = vin;
+        return this;
+    }
+
+    public String getBatteryName() {
+        return batteryName;
+    }
+
+    public Vehicle setBatteryName(String batteryName) {
+        this.batteryName = batteryName;
+        return this;
+    }
+
+    public String getPlateNo() {
+        return plateNo;
+    }
+
+    public Vehicle setPlateNo(String plateNo) {
+        this.plateNo = plateNo;
+        return this;
+    }
+
+    public String getCity() {
+        return city;
+    }
+
+    public Vehicle setCity(String city) {
+        this.city = city;
+        return this;
+    }
+
+    public Long getMileage() {
+        return mileage;
+    }
+
+    public Vehicle setMileage(Long mileage) {
+        this.mileage = mileage;
+        return this;
+    }
+
+    public Double getSoc() {
+        return soc;
+    }
+
+    public Vehicle setSoc(Double soc) {
+        this.soc = soc;
+        return this;
+    }
+
+    public Double getVoltage() {
+        return voltage;
+    }
+
+    public Vehicle setVoltage(Double voltage) {
+        this.voltage = voltage;
+        return this;
+    }
+
+    public Boolean getCharging() {
+        return charging;
+    }
+
+    public Vehicle setCharging(Boolean charging) {
+        this.charging = charging;
+        return this;
+    }
+
+    public Integer getAlarmLevel() {
+        return alarmLevel;
+    }
+
+    public Vehicle setAlarmLevel(Integer alarmLevel) {
+        this.alarmLevel = alarmLevel;
+        return this;
+    }
+
+    public Long getTs() {
+        return ts;
+    }
+
+    public Vehicle setTs(Long ts) {
+        this.ts = ts;
+        return this;
+    }
+
+    public String getRemark() {
+        return remark;
+    }
+
+    public Vehicle setRemark(String remark) {
+        this.remark = remark;
+        return this;
+    }
+}
@@ -0,0 +1,204 @@
+package com.chris.es.jest.model;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Created by Chris Chen
+ * 2018/12/27
+ * Explain: 聚合结果
+ * 按聚合名称取得结果，分桶聚合的结果为桶列表，桶内可再按名称取子聚合的结果
+ * 指标聚合的结果为值映射: stats为count/min/max/avg/sum，percentiles为百分位->值，cardinality为value
+ */
+
+public class AggregationData {
+    private long total;//符合条件的文档总数
+    private long took;
+    private Map<String, Result> aggregations = new LinkedHashMap<>();
+
+    public AggregationData() {
+    }
+
+    public AggregationData(long total, long took) {
+        this.total = total;
+        this.took = took;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public AggregationData setTotal(long total) {
+        this.total = total;
+        return this;
+    }
+
+    public long getTook() {
+        return took;
+    }
+
+    public AggregationData setTook(long took) {
+        this.took = took;
+        return this;
+    }
+
+    public Map<String, Result> getAggregations() {
+        return aggregations;
+    }
+
+    public AggregationData setAggregations(Map<String, Result> aggregations) {
+        this.aggregations = aggregations;
+        return this;
+    }
+
+    /**
+     * 按名称取得聚合结果
+     *
+     * @param name
+     * @return 没有该聚合时为null
+     */
+    public Result get(String name) {
+        return aggregations.get(name);
+    }
+
+    /**
+     * 一个聚合的结果
+     */
+    public static class Result {
+        private String name;
+        private EsAggregation.Type type;
+        private List<Bucket> buckets;//分桶聚合
+        private Map<String, Double> values;//指标聚合
+        private String afterKey;//composite下一页的after_key json 没有更多数据时为null
+
+        public Result() {
+        }
+
+        public Result(String name, EsAggregation.Type type) {
+            this.name = name;
+            this.type = type;
+            if (type.isBucket()) {
+                this.buckets = new ArrayList<>();
+            } else {
+                this.values = new LinkedHashMap<>();
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public EsAggregation.Type getType() {
+            return type;
+        }
+
+        /**
+         * @return 指标聚合为null
+         */
+        public List<Bucket> getBuckets() {
+            return buckets;
+        }
+
+        /**
+         * @return 分桶聚合为null
+         */
+        public Map<String, Double> getValues() {
+            return values;
+        }
+
+        public String getAfterKey() {
+            return afterKey;
+        }
+
+        public Result setAfterKey(String afterKey) {
+            this.afterKey = afterKey;
+            return this;
+        }
+
+        /**
+         * 取得指标值
+         *
+         * @param key 如avg、max、99.0、value
+         * @return 没有数据时为null
+         */
+        public Double getValue(String key) {
+            return values == null ? null : values.get(key);
+        }
+
+        /**
+         * 单值指标(cardinality)的值
+         *
+         * @return
+         */
+        public Double getValue() {
+            return getValue("value");
+        }
+    }
+
+    /**
+     * 分桶聚合的一个桶
+     */
+    public static class Bucket {
+        private String key;//composite的key为json对象
+        private String keyAsString;//date_histogram按format格式化后的key
+        private Map<String, String> keys;//composite各来源的值
+        private long docCount;
+        private Map<String, Result> aggregations = new LinkedHashMap<>();
+
+        public Bucket() {
+        }
+
+        public Bucket(String key, String keyAsString, long docCount) {
+            this.key = key;
+            this.keyAsString = keyAsString;
+            this.docCount = docCount;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getKeyAsString() {
+            return keyAsString;
+        }
+
+        /**
+         * composite桶中一个来源的值
+         *
+         * @param sourceName
+         * @return 不是composite桶或者值为null时为null
+         */
+        public String getKey(String sourceName) {
+            return keys == null ? null : keys.get(sourceName);
+        }
+
+        public Map<String, String> getKeys() {
+            return keys;
+        }
+
+        public Bucket setKeys(Map<String, String> keys) {
+            this.keys = keys;
+            return this;
+        }
+
+        public long getDocCount() {
+            return docCount;
+        }
+
+        public Map<String, Result> getAggregations() {
+            return aggregations;
+        }
+
+        /**
+         * 按名称取得子聚合结果
+         *
+         * @param name
+         * @return
+         */
+        public Result get(String name) {
+            return aggregations.get(name);
+        }
+    }
+}
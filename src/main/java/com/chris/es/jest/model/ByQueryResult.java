@@ -0,0 +1,147 @@
+package com.chris.es.jest.model;
+
+/**
+ * Created by Chris Chen
+ * 2018/12/28
+ * Explain: update_by_query/delete_by_query任务的进度或结果
+ * 任务未完成时为当前进度，完成后为最终结果
+ */
+
+public class ByQueryResult {
+    private String taskId;
+    private boolean completed;
+    private long total;//符合条件的文档数
+    private long updated;
+    private long created;
+    private long deleted;
+    private long batches;
+    private long versionConflicts;
+    private long noops;
+    private int failures;//失败的文档数 只在任务完成后有值
+    private long took;
+    private String error;//任务本身失败时的错误信息
+
+    public ByQueryResult() {
+    }
+
+    public ByQueryResult(String taskId) {
+        this.taskId = taskId;
+    }
+
+    public String getTaskId() {
+        return taskId;
+    }
+
+    public ByQueryResult setTaskId(String taskId) {
+        this.taskId = taskId;
+        return this;
+    }
+
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    public ByQueryResult setCompleted(boolean completed) {
+        this.completed = completed;
+        return this;
+    }
+
+    /**
+     * 任务已完成且没有失败的文档和错误
+     *
+     * @return
+     */
+    public boolean isSucceeded() {
+        return completed && failures == 0 && error == null;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public ByQueryResult setTotal(long total) {
+        this.total = total;
+        return this;
+    }
+
+    public long getUpdated() {
+        return updated;
+    }
+
+    public ByQueryResult setUpdated(long updated) {
+        this.updated = updated;
+        return this;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public ByQueryResult setCreated(long created) {
+        this.created = created;
+        return this;
+    }
+
+    public long getDeleted() {
+        return deleted;
+    }
+
+    public ByQueryResult setDeleted(long deleted) {
+        this.deleted = deleted;
+        return this;
+    }
+
+    public long getBatches() {
+        return batches;
+    }
+
+    public ByQueryResult setBatches(long batches) {
+        this.batches = batches;
+        return this;
+    }
+
+    public long getVersionConflicts() {
+        return versionConflicts;
+    }
+
+    public ByQueryResult setVersionConflicts(long versionConflicts) {
+        this.versionConflicts = versionConflicts;
+        return this;
+    }
+
+    public long getNoops() {
+        return noops;
+    }
+
+    public ByQueryResult setNoops(long noops) {
+        this.noops = noops;
+        return this;
+    }
+
+    public int getFailures() {
+        return failures;
+    }
+
+    public ByQueryResult setFailures(int failures) {
+        this.failures = failures;
+        return this;
+    }
+
+    public long getTook() {
+        return took;
+    }
+
+    public ByQueryResult setTook(long took) {
+        this.took = took;
+        return this;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public ByQueryResult setError(String error) {
+        this.error = error;
+        return this;
+    }
+}
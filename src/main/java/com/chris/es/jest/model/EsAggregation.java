@@ -0,0 +1,229 @@
+package com.chris.es.jest.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Created by Chris Chen
+ * 2018/12/27
+ * Explain: 聚合定义
+ * 分桶聚合(terms、date_histogram、composite)可以包含子聚合，指标聚合(stats、percentiles、cardinality)不能包含子聚合
+ * composite只能作为顶层聚合，按after_key分页遍历见{@link com.chris.es.jest.utils.CompositeIterator}
+ * 结果见{@link AggregationData}
+ */
+
+public class EsAggregation {
+    public enum Type {
+        TERMS(true), DATE_HISTOGRAM(true), COMPOSITE(true), STATS(false), PERCENTILES(false), CARDINALITY(false);
+
+        private final boolean bucket;
+
+        Type(boolean bucket) {
+            this.bucket = bucket;
+        }
+
+        public boolean isBucket() {
+            return bucket;
+        }
+    }
+
+    private final String name;//聚合名称 同一层级内唯一
+    private final Type type;
+    private final String field;
+    private Integer size;//terms返回的桶数量 composite每页的桶数量
+    private String interval;//date_histogram的间隔 如1h、1d、month
+    private String format;//date_histogram的key_as_string格式
+    private String timeZone;//date_histogram的时区 如+08:00
+    private Long minDocCount;//桶的最少文档数
+    private double[] percents;//percentiles的百分位
+    private List<EsAggregation> subAggregations;
+    private List<EsAggregation> sources;//composite的分组来源
+
+    private EsAggregation(String name, Type type, String field) {
+        this.name = name;
+        this.type = type;
+        this.field = field;
+    }
+
+    /**
+     * 按字段值分桶
+     *
+     * @param name
+     * @param field
+     * @return
+     */
+    public static EsAggregation terms(String name, String field) {
+        return new EsAggregation(name, Type.TERMS, field);
+    }
+
+    /**
+     * 按时间间隔分桶
+     *
+     * @param name
+     * @param field
+     * @param interval 如1h、1d、month
+     * @return
+     */
+    public static EsAggregation dateHistogram(String name, String field, String interval) {
+        EsAggregation aggregation = new EsAggregation(name, Type.DATE_HISTOGRAM, field);
+        aggregation.interval = interval;
+        return aggregation;
+    }
+
+    /**
+     * 按多个来源组合分桶 可按after_key分页取得全部桶
+     * 每页的桶数量通过setSize设置
+     *
+     * @param name
+     * @param sources terms或date_histogram 名称作为桶key中的字段名
+     * @return
+     * @throws IllegalArgumentException 来源不是terms或date_histogram
+     */
+    public static EsAggregation composite(String name, EsAggregation... sources) {
+        EsAggregation aggregation = new EsAggregation(name, Type.COMPOSITE, null);
+        aggregation.sources = new ArrayList<>();
+        for (EsAggregation source : sources) {
+            if (source.type != Type.TERMS && source.type != Type.DATE_HISTOGRAM) {
+                throw new IllegalArgumentException("composite的来源只能是terms或date_histogram: " + source.name);
+            }
+            aggregation.sources.add(source);
+        }
+        return aggregation;
+    }
+
+    /**
+     * count、min、max、avg、sum
+     *
+     * @param name
+     * @param field
+     * @return
+     */
+    public static EsAggregation stats(String name, String field) {
+        return new EsAggregation(name, Type.STATS, field);
+    }
+
+    /**
+     * 百分位数
+     *
+     * @param name
+     * @param field
+     * @param percents 为空时使用ES默认的百分位
+     * @return
+     */
+    public static EsAggregation percentiles(String name, String field, double... percents) {
+        EsAggregation aggregation = new EsAggregation(name, Type.PERCENTILES, field);
+        aggregation.percents = percents == null || percents.length == 0 ? null : percents;
+        return aggregation;
+    }
+
+    /**
+     * 去重计数 近似值
+     *
+     * @param name
+     * @param field
+     * @return
+     */
+    public static EsAggregation cardinality(String name, String field) {
+        return new EsAggregation(name, Type.CARDINALITY, field);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public Integer getSize() {
+        return size;
+    }
+
+    public EsAggregation setSize(Integer size) {
+        this.size = size;
+        return this;
+    }
+
+    public String getInterval() {
+        return interval;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public EsAggregation setFormat(String format) {
+        this.format = format;
+        return this;
+    }
+
+    public String getTimeZone() {
+        return timeZone;
+    }
+
+    public EsAggregation setTimeZone(String timeZone) {
+        this.timeZone = timeZone;
+        return this;
+    }
+
+    public Long getMinDocCount() {
+        return minDocCount;
+    }
+
+    public EsAggregation setMinDocCount(Long minDocCount) {
+        this.minDocCount = minDocCount;
+        return this;
+    }
+
+    public double[] getPercents() {
+        return percents;
+    }
+
+    public List<EsAggregation> getSubAggregations() {
+        return subAggregations;
+    }
+
+    public List<EsAggregation> getSources() {
+        return sources;
+    }
+
+    /**
+     * 添加子聚合 在每个桶内分别计算
+     *
+     * @param subAggregation
+     * @return
+     * @throws IllegalArgumentException 指标聚合不能包含子聚合
+     */
+    public EsAggregation addSubAggregation(EsAggregation subAggregation) {
+        if (!type.isBucket()) {
+            throw new IllegalArgumentException("指标聚合不能包含子聚合: " + name);
+        }
+        if (this.subAggregations == null) {
+            this.subAggregations = new ArrayList<>();
+        }
+        this.subAggregations.add(subAggregation);
+        return this;
+    }
+
+    /**
+     * 复制聚合定义 子聚合和来源列表复制为新的集合，其中的聚合本身不复制
+     *
+     * @return
+     */
+    public EsAggregation copy() {
+        EsAggregation aggregation = new EsAggregation(name, type, field);
+        aggregation.size = size;
+        aggregation.interval = interval;
+        aggregation.format = format;
+        aggregation.timeZone = timeZone;
+        aggregation.minDocCount = minDocCount;
+        aggregation.percents = percents;
+        aggregation.subAggregations = subAggregations == null ? null : new ArrayList<>(subAggregations);
+        aggregation.sources = sources == null ? null : new ArrayList<>(sources);
+        return aggregation;
+    }
+}
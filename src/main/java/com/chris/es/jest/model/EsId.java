@@ -0,0 +1,18 @@
+package com.chris.es.jest.model;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Created by Chris Chen
+ * 2018/12/12
+ * Explain: 标记实体中接收文档_id的字段
+ * 没有标记时使用名为id的字段(包括父类中的字段)
+ */
+
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface EsId {
+}
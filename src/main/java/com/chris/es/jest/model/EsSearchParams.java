@@ -1,8 +1,14 @@
 package com.chris.es.jest.model;
 
+import com.google.gson.annotations.SerializedName;
 import io.searchbox.core.search.sort.Sort;
 import org.springframework.util.StringUtils;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -15,6 +21,7 @@ import java.util.Map;
 
 public class EsSearchParams extends PageParams {
     private Map<String, Object> fieldMap;//单字段精确匹配映射
+    private Map<String, Collection<?>> termsFieldMap;//单字段多值精确匹配映射
     private Map<String, String> mustWildcardFieldMap;//单字段模糊匹配映射 must
     private Map<String, String> shouldWildcardFieldMap;//单字段模糊匹配映射 should
     private Map<String, String[]> multiFieldMap;//多字段同值精确匹配映射
@@ -25,6 +32,14 @@ public class EsSearchParams extends PageParams {
     private String type;//es type 数据表
     private String sortFieldName;//排序字段
     private Sort.Sorting sortMode = Sort.Sorting.ASC;//排序方式
+    private String searchAfter;//游标分页令牌 来自上一页的PageData.nextCursor
+    private boolean scoring;//精确匹配、区间和极值条件是否参与评分
+    private boolean fetchSource = true;//是否返回_source
+    private String[] sourceIncludes;//_source只包含的字段
+    private String[] sourceExcludes;//_source排除的字段
+    private List<String> docValueFields;//从doc values读取的字段
+    private List<String> storedFields;//单独存储的字段
+    private List<EsAggregation> aggregations;//聚合定义
 
     public EsSearchParams() {
     }
@@ -42,6 +57,34 @@ public class EsSearchParams extends PageParams {
         return this;
     }
 
+    public Map<String, Collection<?>> getTermsFieldMap() {
+        return termsFieldMap;
+    }
+
+    public EsSearchParams setTermsFieldMap(Map<String, Collection<?>> termsFieldMap) {
+        this.termsFieldMap = termsFieldMap;
+        return this;
+    }
+
+    /**
+     * 字段等于集合中任意一个值 生成一个terms查询
+     * 值数量超过ESUtils.TERMS_CHUNK_SIZE时searchList拆分为并发的子请求
+     *
+     * @param fieldName
+     * @param values    为空时忽略该条件
+     * @return
+     */
+    public EsSearchParams addFieldIn(String fieldName, Collection<?> values) {
+        if (this.termsFieldMap == null) {
+            this.termsFieldMap = new HashMap<>();
+        }
+        if (StringUtils.isEmpty(fieldName) || values == null || values.isEmpty()) {
+            return this;
+        }
+        this.termsFieldMap.put(fieldName, values);
+        return this;
+    }
+
     public Map<String, String> getMustWildcardFieldMap() {
         return mustWildcardFieldMap;
     }
@@ -251,4 +294,208 @@ public class EsSearchParams extends PageParams {
         }
         return this;
     }
+
+    public String getSearchAfter() {
+        return searchAfter;
+    }
+
+    public EsSearchParams setSearchAfter(String searchAfter) {
+        this.searchAfter = searchAfter;
+        return this;
+    }
+
+    public boolean isScoring() {
+        return scoring;
+    }
+
+    /**
+     * 精确匹配、区间和极值条件默认放在filter中，不计算评分且可被ES缓存
+     * 需要这些条件参与评分时设置为true
+     *
+     * @param scoring
+     * @return
+     */
+    public EsSearchParams setScoring(boolean scoring) {
+        this.scoring = scoring;
+        return this;
+    }
+
+    public boolean isFetchSource() {
+        return fetchSource;
+    }
+
+    /**
+     * 是否返回_source 只需要docvalue/stored字段或只需要id时可以关闭
+     *
+     * @param fetchSource
+     * @return
+     */
+    public EsSearchParams setFetchSource(boolean fetchSource) {
+        this.fetchSource = fetchSource;
+        return this;
+    }
+
+    public String[] getSourceIncludes() {
+        return sourceIncludes;
+    }
+
+    /**
+     * _source只返回这些字段 支持通配符
+     *
+     * @param sourceIncludes
+     * @return
+     */
+    public EsSearchParams setSourceIncludes(String... sourceIncludes) {
+        this.sourceIncludes = sourceIncludes;
+        return this;
+    }
+
+    public String[] getSourceExcludes() {
+        return sourceExcludes;
+    }
+
+    /**
+     * _source不返回这些字段 支持通配符
+     *
+     * @param sourceExcludes
+     * @return
+     */
+    public EsSearchParams setSourceExcludes(String... sourceExcludes) {
+        this.sourceExcludes = sourceExcludes;
+        return this;
+    }
+
+    /**
+     * 按DTO的字段设置_source包含的字段 搜索时以该DTO类型接收结果
+     * 字段名按Gson规则取，有@SerializedName时使用其值，忽略static和transient字段
+     *
+     * @param projectionClass
+     * @return
+     */
+    public EsSearchParams setProjection(Class<?> projectionClass) {
+        List<String> fieldNames = new ArrayList<>();
+        for (Class<?> c = projectionClass; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                    continue;
+                }
+                SerializedName serializedName = field.getAnnotation(SerializedName.class);
+                String name = serializedName == null ? field.getName() : serializedName.value();
+                if (!fieldNames.contains(name)) {
+                    fieldNames.add(name);
+                }
+            }
+        }
+        this.fetchSource = true;
+        this.sourceIncludes = fieldNames.toArray(new String[0]);
+        return this;
+    }
+
+    public List<String> getDocValueFields() {
+        return docValueFields;
+    }
+
+    /**
+     * 从doc values读取字段 值会合并到结果实体的同名字段
+     *
+     * @param fieldNames
+     * @return
+     */
+    public EsSearchParams addDocValueField(String... fieldNames) {
+        if (this.docValueFields == null) {
+            this.docValueFields = new ArrayList<>();
+        }
+        this.docValueFields.addAll(Arrays.asList(fieldNames));
+        return this;
+    }
+
+    public List<String> getStoredFields() {
+        return storedFields;
+    }
+
+    /**
+     * 读取mapping中store为true的字段 值会合并到结果实体的同名字段
+     *
+     * @param fieldNames
+     * @return
+     */
+    public EsSearchParams addStoredField(String... fieldNames) {
+        if (this.storedFields == null) {
+            this.storedFields = new ArrayList<>();
+        }
+        this.storedFields.addAll(Arrays.asList(fieldNames));
+        return this;
+    }
+
+    public List<EsAggregation> getAggregations() {
+        return aggregations;
+    }
+
+    public EsSearchParams setAggregations(List<EsAggregation> aggregations) {
+        this.aggregations = aggregations;
+        return this;
+    }
+
+    /**
+     * 添加聚合 由ESUtils.aggregate在ES中计算，不返回文档
+     *
+     * @param aggregation
+     * @return
+     */
+    public EsSearchParams addAggregation(EsAggregation aggregation) {
+        if (this.aggregations == null) {
+            this.aggregations = new ArrayList<>();
+        }
+        if (aggregation == null) {
+            return this;
+        }
+        this.aggregations.add(aggregation);
+        return this;
+    }
+
+    /**
+     * 复制搜索参数 条件映射和字段列表复制为新的集合，条件值本身不复制
+     *
+     * @return
+     */
+    public EsSearchParams copy() {
+        EsSearchParams params = new EsSearchParams();
+        params.setPage(getPage());
+        params.setPageSize(getPageSize());
+        params.fieldMap = copyMap(fieldMap);
+        params.termsFieldMap = copyMap(termsFieldMap);
+        params.mustWildcardFieldMap = copyMap(mustWildcardFieldMap);
+        params.shouldWildcardFieldMap = copyMap(shouldWildcardFieldMap);
+        params.multiFieldMap = copyMap(multiFieldMap);
+        params.multiWildcardFieldMap = copyMap(multiWildcardFieldMap);
+        params.rangeFieldMap = copyMap(rangeFieldMap);
+        params.extremeFieldMap = copyMap(extremeFieldMap);
+        params.index = index;
+        params.type = type;
+        params.sortFieldName = sortFieldName;
+        params.sortMode = sortMode;
+        params.searchAfter = searchAfter;
+        params.scoring = scoring;
+        params.fetchSource = fetchSource;
+        params.sourceIncludes = sourceIncludes;
+        params.sourceExcludes = sourceExcludes;
+        params.docValueFields = docValueFields == null ? null : new ArrayList<>(docValueFields);
+        params.storedFields = storedFields == null ? null : new ArrayList<>(storedFields);
+        params.aggregations = aggregations == null ? null : new ArrayList<>(aggregations);
+        return params;
+    }
+
+    private static <K, V> Map<K, V> copyMap(Map<K, V> map) {
+        return map == null ? null : new HashMap<>(map);
+    }
+
+    /**
+     * 是否需要把hit中的fields合并到实体
+     *
+     * @return
+     */
+    public boolean hasFieldProjection() {
+        return (docValueFields != null && !docValueFields.isEmpty()) || (storedFields != null && !storedFields.isEmpty());
+    }
 }
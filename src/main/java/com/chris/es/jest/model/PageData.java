@@ -18,6 +18,7 @@ public class PageData<T> {
     private int pageSize;
     private long total;
     private boolean hasNext;
+    private String nextCursor;//游标分页时下一页的令牌
 
     private List<T> dataList;
 
@@ -93,6 +94,15 @@ public class PageData<T> {
         return this;
     }
 
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public PageData setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+        return this;
+    }
+
     public List<T> getDataList() {
         return dataList;
     }
@@ -115,7 +125,7 @@ public class PageData<T> {
         return pageData;
     }
 
-    public static PageData buildNull() {
-        return new PageData(0, 0, 0, false, null);
+    public static <T> PageData<T> buildNull() {
+        return new PageData<>(0, 0, 0, false, null);
     }
 }
@@ -0,0 +1,79 @@
+package com.chris.es.jest.model;
+
+/**
+ * Created by Chris Chen
+ * 2018/12/28
+ * Explain: 单个文档的写入结果
+ * 直接写入和经过写缓冲批量写入都以此返回，不依赖具体客户端的结果类型
+ */
+
+public class WriteResult {
+    private String index;
+    private String type;
+    private String id;
+    private Long version;//写入后的文档版本 响应中没有时为null
+    private int status;//http状态 新建为201，覆盖已有文档为200
+
+    public WriteResult() {
+    }
+
+    public WriteResult(String index, String type, String id) {
+        this.index = index;
+        this.type = type;
+        this.id = id;
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    public WriteResult setIndex(String index) {
+        this.index = index;
+        return this;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public WriteResult setType(String type) {
+        this.type = type;
+        return this;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public WriteResult setId(String id) {
+        this.id = id;
+        return this;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public WriteResult setVersion(Long version) {
+        this.version = version;
+        return this;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public WriteResult setStatus(int status) {
+        this.status = status;
+        return this;
+    }
+
+    /**
+     * 是否新建了文档 覆盖已有文档时为false
+     *
+     * @return
+     */
+    public boolean isCreated() {
+        return status == 201;
+    }
+}
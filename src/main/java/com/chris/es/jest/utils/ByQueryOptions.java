@@ -0,0 +1,115 @@
+package com.chris.es.jest.utils;
+
+import io.searchbox.action.AbstractMultiTypeActionBuilder;
+
+/**
+ * Created by Chris Chen
+ * 2018/12/28
+ * Explain: update_by_query/delete_by_query的执行参数
+ * 请求总是以wait_for_completion=false提交为后台任务，通过{@link EsTask}轮询进度
+ */
+
+public class ByQueryOptions {
+    private String slices;//并行切片数 auto为按分片数切分
+    private Float requestsPerSecond;//每秒处理的文档数 用于限流
+    private boolean conflictsProceed;//版本冲突时继续执行
+    private boolean refresh;//完成后刷新索引
+    private Integer scrollSize;//每批处理的文档数
+
+    public static ByQueryOptions get() {
+        return new ByQueryOptions();
+    }
+
+    public String getSlices() {
+        return slices;
+    }
+
+    /**
+     * 把任务切分为多个并行执行的子任务
+     *
+     * @param slices 大于1时生效
+     * @return
+     */
+    public ByQueryOptions setSlices(int slices) {
+        this.slices = slices > 1 ? String.valueOf(slices) : null;
+        return this;
+    }
+
+    /**
+     * 按分片数切分子任务 ES6.1以上
+     *
+     * @return
+     */
+    public ByQueryOptions setAutoSlices() {
+        this.slices = "auto";
+        return this;
+    }
+
+    public Float getRequestsPerSecond() {
+        return requestsPerSecond;
+    }
+
+    /**
+     * 限制每秒处理的文档数 避免影响线上查询
+     *
+     * @param requestsPerSecond 为null时不限流
+     * @return
+     */
+    public ByQueryOptions setRequestsPerSecond(Float requestsPerSecond) {
+        this.requestsPerSecond = requestsPerSecond;
+        return this;
+    }
+
+    public boolean isConflictsProceed() {
+        return conflictsProceed;
+    }
+
+    /**
+     * 版本冲突时跳过该文档继续执行 默认遇到冲突即中止
+     *
+     * @param conflictsProceed
+     * @return
+     */
+    public ByQueryOptions setConflictsProceed(boolean conflictsProceed) {
+        this.conflictsProceed = conflictsProceed;
+        return this;
+    }
+
+    public boolean isRefresh() {
+        return refresh;
+    }
+
+    public ByQueryOptions setRefresh(boolean refresh) {
+        this.refresh = refresh;
+        return this;
+    }
+
+    public Integer getScrollSize() {
+        return scrollSize;
+    }
+
+    public ByQueryOptions setScrollSize(Integer scrollSize) {
+        this.scrollSize = scrollSize;
+        return this;
+    }
+
+    //写入url参数
+    void applyTo(AbstractMultiTypeActionBuilder<?, ?> builder) {
+        builder.setParameter("wait_for_completion", false);
+        if (slices != null) {
+            builder.setParameter("slices", slices);
+        }
+        if (requestsPerSecond != null) {
+            builder.setParameter("requests_per_second", requestsPerSecond);
+        }
+        if (conflictsProceed) {
+            builder.setParameter("conflicts", "proceed");
+        }
+        if (refresh) {
+            builder.setParameter("refresh", true);
+        }
+        if (scrollSize != null) {
+            builder.setParameter("scroll_size", scrollSize);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.chris.es.jest.utils;
+
+import com.chris.es.jest.model.AggregationData;
+import com.chris.es.jest.model.EsAggregation;
+import com.chris.es.jest.model.EsSearchParams;
+import io.searchbox.client.JestClient;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Created by Chris Chen
+ * 2018/12/27
+ * Explain: 按after_key分页遍历composite聚合的惰性迭代器
+ * 查询条件与ESUtils.searchResult的转换方式相同，每次只持有一页桶，消费完才请求下一页
+ * getAfterKey返回最后一个已消费桶的key，保存后可从该位置继续遍历
+ */
+
+public class CompositeIterator implements Iterator<AggregationData.Bucket>, Closeable {
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private final JestClient jestClient;
+    private final EsSearchParams params;
+    private final String name;
+    private final int batchSize;
+
+    private String pageAfterKey;//下一页请求的after
+    private String afterKey;//最后一个已消费桶的key
+    private List<AggregationData.Bucket> batch;
+    private int position;
+    private boolean finished;
+
+    public CompositeIterator(JestClient jestClient, EsSearchParams params, EsAggregation composite) {
+        this(jestClient, params, composite, null);
+    }
+
+    /**
+     * @param jestClient
+     * @param params     查询条件 其中的聚合定义不生效
+     * @param composite  composite聚合 未设置size时设置为DEFAULT_BATCH_SIZE
+     * @param afterKey   从该key之后继续遍历 为null时从头开始
+     * @throws IllegalArgumentException composite不是composite聚合或afterKey不是json对象
+     */
+    public CompositeIterator(JestClient jestClient, EsSearchParams params, EsAggregation composite, String afterKey) {
+        if (composite.getType() != EsAggregation.Type.COMPOSITE) {
+            throw new IllegalArgumentException("不是composite聚合: " + composite.getName());
+        }
+        //在副本上设置默认size 不修改调用方的聚合定义
+        EsAggregation request = composite.getSize() == null ? composite.copy().setSize(DEFAULT_BATCH_SIZE) : composite;
+        this.jestClient = jestClient;
+        this.params = params.copy().setAggregations(Collections.singletonList(request));
+        this.name = composite.getName();
+        this.batchSize = request.getSize();
+        this.pageAfterKey = ESUtils.normalizeAfterKey(afterKey);
+        this.afterKey = afterKey;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (batch != null && position < batch.size()) {
+            return true;
+        }
+        if (finished) {
+            return false;
+        }
+        fetchNextBatch();
+        return batch != null && position < batch.size();
+    }
+
+    @Override
+    public AggregationData.Bucket next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        AggregationData.Bucket bucket = batch.get(position++);
+        afterKey = bucket.getKey();
+        return bucket;
+    }
+
+    //拉取下一页 上一页的引用随即释放
+    private void fetchNextBatch() {
+        batch = null;
+        position = 0;
+        AggregationData data = ESUtils.aggregate(jestClient, params, pageAfterKey);
+        if (data == null) {
+            close();
+            throw new IllegalStateException("composite聚合查询失败: " + name);
+        }
+        AggregationData.Result result = data.get(name);
+        if (result == null || result.getBuckets().isEmpty()) {
+            close();
+            return;
+        }
+        batch = result.getBuckets();
+        pageAfterKey = result.getAfterKey();
+        //不满一页说明已经是最后一页
+        if (pageAfterKey == null || batch.size() < batchSize) {
+            finished = true;
+        }
+    }
+
+    /**
+     * 最后一个已消费桶的key 用于之后继续遍历
+     *
+     * @return 还没有消费任何桶时为构造时传入的afterKey
+     */
+    public String getAfterKey() {
+        return afterKey;
+    }
+
+    /**
+     * 停止遍历 可重复调用
+     */
+    @Override
+    public void close() {
+        finished = true;
+        batch = null;
+    }
+
+    /**
+     * 转为顺序流
+     *
+     * @return
+     */
+    public Stream<AggregationData.Bucket> stream() {
+        Spliterator<AggregationData.Bucket> spliterator = Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL);
+        return StreamSupport.stream(spliterator, false).onClose(this::close);
+    }
+}
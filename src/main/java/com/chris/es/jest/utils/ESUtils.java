@@ -1,12 +1,30 @@
 package com.chris.es.jest.utils;
 
+import com.chris.es.jest.model.AggregationData;
+import com.chris.es.jest.model.EsAggregation;
 import com.chris.es.jest.model.EsSearchParams;
 import com.chris.es.jest.model.PageData;
 import com.chris.es.jest.model.Range;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import io.searchbox.action.Action;
 import io.searchbox.client.JestClient;
+import io.searchbox.client.http.JestHttpClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.core.DeleteByQuery;
+import io.searchbox.core.DocumentResult;
+import io.searchbox.core.Get;
 import io.searchbox.core.Index;
+import io.searchbox.core.MultiGet;
 import io.searchbox.core.Search;
 import io.searchbox.core.SearchResult;
+import io.searchbox.core.UpdateByQuery;
 import io.searchbox.core.search.aggregation.MaxAggregation;
 import io.searchbox.core.search.aggregation.MinAggregation;
 import io.searchbox.core.search.sort.Sort;
@@ -18,12 +36,20 @@ import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.springframework.util.StringUtils;
 
 import java.io.IOException;
-import java.lang.reflect.Field;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
 
 /**
  * Created by Chris Chen
@@ -33,6 +59,24 @@ import java.util.UUID;
 
 public class ESUtils {
     public static Integer PAGE_SIZE_MAX = 10000;
+    //游标分页的唯一排序字段 ES7以上可设置为其它唯一字段
+    public static String CURSOR_TIE_BREAKER = "_uid";
+    //字段读取参数名 ES5以上为docvalue_fields/stored_fields，ES2.x需要设置为fielddata_fields/fields
+    public static String DOCVALUE_FIELDS_NAME = "docvalue_fields";
+    public static String STORED_FIELDS_NAME = "stored_fields";
+    //单个terms查询最多的值数量 searchList超过时按此拆分为并发的子请求
+    public static int TERMS_CHUNK_SIZE = 1000;
+    //单个_mget请求最多的id数量 getByIds超过时按此拆分为并发的子请求
+    public static int MGET_CHUNK_SIZE = 1000;
+    //极值缓存有效期(毫秒) 小于等于0时不缓存 默认不缓存
+    private static long extremeCacheTtl = 0;
+    private static volatile Cache<String, Map<String, Long>> extremeCache = buildExtremeCache(extremeCacheTtl);
+
+    private static final Gson DEFAULT_GSON = new Gson();
+    //并发搜索合并器 为null时每个搜索单独请求
+    private static volatile MultiSearchCoalescer multiSearchCoalescer;
+    //searchList/searchPage是否流式解析hit
+    private static volatile boolean streamingHits;
 
     public static Integer getPageSizeMax() {
         return PAGE_SIZE_MAX;
@@ -44,6 +88,77 @@ public class ESUtils {
         }
     }
 
+    public static long getExtremeCacheTtl() {
+        return extremeCacheTtl;
+    }
+
+    /**
+     * 设置极值缓存有效期
+     * 同一组过滤条件在有效期内只向ES请求一次极值
+     * 写入不会清除该缓存，有效期内新写入的数据不会改变极值条件，只适合能接受该延迟的场景
+     *
+     * @param ttlMillis 毫秒 小于等于0时关闭缓存
+     */
+    public static synchronized void setExtremeCacheTtl(long ttlMillis) {
+        ESUtils.extremeCacheTtl = ttlMillis;
+        ESUtils.extremeCache = buildExtremeCache(ttlMillis);
+    }
+
+    public static MultiSearchCoalescer getMultiSearchCoalescer() {
+        return multiSearchCoalescer;
+    }
+
+    /**
+     * 设置并发搜索合并器
+     * 对合并器所属JestClient的搜索会在时间窗口内合并为一次_msearch请求
+     *
+     * @param coalescer 为null时关闭合并
+     */
+    public static void setMultiSearchCoalescer(MultiSearchCoalescer coalescer) {
+        ESUtils.multiSearchCoalescer = coalescer;
+    }
+
+    public static boolean isStreamingHits() {
+        return streamingHits;
+    }
+
+    /**
+     * 开启后searchList、searchPage、searchPageByCursor及其异步方法逐个token解析响应体，
+     * _source直接绑定为实体，不生成整个响应的JsonObject，大分页时内存占用明显降低
+     * 流式搜索不经过搜索结果缓存和_msearch合并
+     *
+     * @param streamingHits
+     */
+    public static void setStreamingHits(boolean streamingHits) {
+        ESUtils.streamingHits = streamingHits;
+    }
+
+    private static Cache<String, Map<String, Long>> buildExtremeCache(long ttlMillis) {
+        if (ttlMillis <= 0) {
+            return null;
+        }
+        return CacheBuilder.newBuilder()
+                .maximumSize(1024)
+                .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * 获取客户端使用的Gson 保证序列化规则与客户端一致
+     *
+     * @param jestClient
+     * @return
+     */
+    public static Gson getGson(JestClient jestClient) {
+        if (jestClient instanceof JestHttpClient) {
+            Gson gson = ((JestHttpClient) jestClient).getGson();
+            if (gson != null) {
+                return gson;
+            }
+        }
+        return DEFAULT_GSON;
+    }
+
     /**
      * 把hit集合转换为对象集合
      *
@@ -55,12 +170,12 @@ public class ESUtils {
         if (hitList == null || hitList.size() == 0) {
             return null;
         }
-        List<T> list = new ArrayList<>();
-        hitList.stream().forEach(hit -> {
+        List<T> list = new ArrayList<>(hitList.size());
+        for (SearchResult.Hit<T, Void> hit : hitList) {
             T source = hit.source;
-            setDefaultValue(source, "id", hit.id);
+            EsIdBinder.bind(source, hit.id);
             list.add(source);
-        });
+        }
         return list;
     }
 
@@ -88,7 +203,7 @@ public class ESUtils {
      */
     public static <T> T hitToEntity(SearchResult.Hit<T, Void> hit) {
         T source = hit.source;
-        setDefaultValue(source, "id", hit.id);
+        EsIdBinder.bind(source, hit.id);
         return source;
     }
 
@@ -115,15 +230,139 @@ public class ESUtils {
         return null;
     }
 
+    /**
+     * 根据id实时读取文档 不经过搜索
+     *
+     * @param jestClient
+     * @param index
+     * @param type
+     * @param id
+     * @param clazz
+     * @param <T>
+     * @return 文档不存在或请求失败时为null
+     */
+    public static <T> T getById(JestClient jestClient, String index, String type, String id, Class<T> clazz) {
+        if (checkIsEmpty(id)) {
+            return null;
+        }
+        Get get = new Get.Builder(index, id).type(type).build();
+        try {
+            long start = EsMetrics.start();
+            DocumentResult result = jestClient.execute(get);
+            EsMetrics.lap(EsMetrics.OP_GET, index, type, EsMetrics.HTTP, start);
+            EsMetrics.response(EsMetrics.OP_GET, index, type, null, result);
+            return docToEntity(result.getJsonObject(), getGson(jestClient), clazz);
+        } catch (IOException e) {
+            //logger.d("ES读取异常");
+        }
+        return null;
+    }
+
+    /**
+     * 根据id批量实时读取文档
+     * id数量超过MGET_CHUNK_SIZE时拆分为多个_mget请求并发执行
+     *
+     * @param jestClient
+     * @param index
+     * @param type
+     * @param ids
+     * @param clazz
+     * @param <T>
+     * @return 与ids顺序一致，不存在的文档跳过；请求失败时为空集合
+     */
+    public static <T> List<T> getByIds(JestClient jestClient, String index, String type, Collection<String> ids, Class<T> clazz) {
+        try {
+            return getByIdsAsync(jestClient, index, type, ids, clazz).join();
+        } catch (CompletionException e) {
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * 异步根据id批量实时读取文档
+     *
+     * @param jestClient
+     * @param index
+     * @param type
+     * @param ids
+     * @param clazz
+     * @param <T>
+     * @return 与ids顺序一致，不存在的文档跳过；请求异常时future异常结束
+     */
+    public static <T> CompletableFuture<List<T>> getByIdsAsync(JestClient jestClient, String index, String type, Collection<String> ids, Class<T> clazz) {
+        if (ids == null || ids.isEmpty()) {
+            return CompletableFuture.completedFuture(new ArrayList<>());
+        }
+        List<String> idList = new ArrayList<>(ids);
+        int chunkSize = MGET_CHUNK_SIZE > 0 ? MGET_CHUNK_SIZE : idList.size();
+        Gson gson = getGson(jestClient);
+        List<CompletableFuture<List<T>>> futures = new ArrayList<>();
+        for (int from = 0; from < idList.size(); from += chunkSize) {
+            List<String> chunk = idList.subList(from, Math.min(from + chunkSize, idList.size()));
+            MultiGet multiGet = new MultiGet.Builder.ById(index, type).addId(chunk).build();
+            long start = EsMetrics.start();
+            futures.add(JestAsync.execute(jestClient, multiGet).thenApply(result -> {
+                EsMetrics.lap(EsMetrics.OP_GET, index, type, EsMetrics.HTTP, start);
+                EsMetrics.response(EsMetrics.OP_GET, index, type, null, result);
+                return docsToEntities(result, gson, clazz);
+            }));
+        }
+        return JestAsync.allOf(futures).thenApply(chunks -> {
+            List<T> dataList = new ArrayList<>(idList.size());
+            chunks.forEach(dataList::addAll);
+            return dataList;
+        });
+    }
+
+    //_mget结果中的docs与请求的id顺序一致
+    private static <T> List<T> docsToEntities(JestResult result, Gson gson, Class<T> clazz) {
+        List<T> dataList = new ArrayList<>();
+        JsonObject jsonObject = result == null ? null : result.getJsonObject();
+        if (jsonObject == null || !jsonObject.has("docs")) {
+            return dataList;
+        }
+        for (JsonElement doc : jsonObject.getAsJsonArray("docs")) {
+            T entity = docToEntity(doc.getAsJsonObject(), gson, clazz);
+            if (entity != null) {
+                dataList.add(entity);
+            }
+        }
+        return dataList;
+    }
+
+    //与hitToEntity一致 把_id写入实体 文档不存在时为null
+    private static <T> T docToEntity(JsonObject doc, Gson gson, Class<T> clazz) {
+        if (doc == null || !doc.has("found") || !doc.get("found").getAsBoolean()) {
+            return null;
+        }
+        JsonElement source = doc.get("_source");
+        T entity = source == null || source.isJsonNull() ? gson.fromJson("{}", clazz) : gson.fromJson(source, clazz);
+        EsIdBinder.bind(entity, doc.get("_id").getAsString());
+        return entity;
+    }
+
     //搜索按照最大限制允许的数据集合
     public static <T> List<T> searchList(JestClient jestClient, EsSearchParams params, Class<T> clazz) {
         List<T> dataList = new ArrayList<>();
+        if (findChunkedTermsField(params) != null) {
+            try {
+                return searchListChunkedAsync(jestClient, params, clazz).join();
+            } catch (CompletionException e) {
+                return dataList;
+            }
+        }
+        if (streamingHits) {
+            StreamingSearchResult<T> result = searchStreaming(jestClient, params, clazz, false);
+            if (result == null || !result.isSucceeded()) {
+                return dataList;
+            }
+            return toDataList(result);
+        }
         SearchResult result = searchResult(jestClient, params);
         if (result == null || !result.isSucceeded()) {
             return dataList;
         }
-        List<SearchResult.Hit<T, Void>> hits = result.getHits(clazz);
-        dataList = ESUtils.converFromHitList(hits);
+        dataList = convertHits(jestClient, result, params, clazz);
         return dataList;
     }
 
@@ -134,38 +373,762 @@ public class ESUtils {
      * @throws IOException
      */
     public static <T> PageData<T> searchPage(JestClient jestClient, EsSearchParams params, Class<T> clazz) {
-        //long startTime = System.currentTimeMillis();//搜索开始时间
+        if (findChunkedTermsField(params) != null) {
+            try {
+                return searchPageChunkedAsync(jestClient, params, clazz).join();
+            } catch (CompletionException e) {
+                return PageData.<T>buildNull();
+            }
+        }
+        if (streamingHits) {
+            return toPageData(searchStreaming(jestClient, params, clazz, false), params, clazz);
+        }
         SearchResult result = searchResult(jestClient, params);
+        return toPageData(jestClient, result, params, clazz);
+    }
+
+    /**
+     * 异步ElasticSearch搜索 不阻塞调用线程
+     * 并发上限和超时见{@link JestAsync}
+     *
+     * @param jestClient
+     * @param params
+     * @param clazz
+     * @param <T>
+     * @return
+     */
+    public static <T> CompletableFuture<PageData<T>> searchPageAsync(JestClient jestClient, EsSearchParams params, Class<T> clazz) {
+        if (findChunkedTermsField(params) != null) {
+            return searchPageChunkedAsync(jestClient, params, clazz);
+        }
+        if (streamingHits) {
+            return searchStreamingAsync(jestClient, params, clazz).thenApply(result -> toPageData(result, params, clazz));
+        }
+        return searchResultAsync(jestClient, params).thenApply(result -> toPageData(jestClient, result, params, clazz));
+    }
+
+    /**
+     * 异步搜索按照最大限制允许的数据集合
+     *
+     * @param jestClient
+     * @param params
+     * @param clazz
+     * @param <T>
+     * @return
+     */
+    public static <T> CompletableFuture<List<T>> searchListAsync(JestClient jestClient, EsSearchParams params, Class<T> clazz) {
+        if (findChunkedTermsField(params) != null) {
+            return searchListChunkedAsync(jestClient, params, clazz);
+        }
+        if (streamingHits) {
+            return searchStreamingAsync(jestClient, params, clazz).thenApply(result -> {
+                if (result == null || !result.isSucceeded()) {
+                    return new ArrayList<T>();
+                }
+                return toDataList(result);
+            });
+        }
+        return searchResultAsync(jestClient, params).thenApply(result -> {
+            if (result == null || !result.isSucceeded()) {
+                return new ArrayList<T>();
+            }
+            return convertHits(jestClient, result, params, clazz);
+        });
+    }
+
+    //分组搜索的一页数据 与非分组时一致，没有数据时为空集合
+    private static <T> CompletableFuture<List<T>> searchListChunkedAsync(JestClient jestClient, EsSearchParams params, Class<T> clazz) {
+        return searchPageChunkedAsync(jestClient, params, clazz).thenApply(page -> page.getDataList() == null ? new ArrayList<T>() : page.getDataList());
+    }
+
+    //值数量超过TERMS_CHUNK_SIZE的terms字段 取值最多的一个 没有时为null
+    private static String findChunkedTermsField(EsSearchParams params) {
+        Map<String, Collection<?>> termsFieldMap = params.getTermsFieldMap();
+        if (termsFieldMap == null || TERMS_CHUNK_SIZE <= 0) {
+            return null;
+        }
+        String fieldName = null;
+        int max = TERMS_CHUNK_SIZE;
+        for (Map.Entry<String, Collection<?>> entry : termsFieldMap.entrySet()) {
+            if (entry.getValue() != null && entry.getValue().size() > max) {
+                fieldName = entry.getKey();
+                max = entry.getValue().size();
+            }
+        }
+        return fieldName;
+    }
+
+    /**
+     * 按terms字段的值拆分为多个子请求并发执行
+     * 每个子请求通过异步请求用search_after取完全部命中，合并后按_id去重并按排序字段归并，最后按调用方的page/pageSize取一页
+     * 没有排序字段时按文档唯一标识排序，不按评分
+     * 合并结果全部保存在内存中，适用于值数量多但命中总数有限的查询；total为去重后的命中数
+     *
+     * @param jestClient
+     * @param params
+     * @param clazz
+     * @param <T>
+     * @return 子请求失败时future异常结束
+     */
+    private static <T> CompletableFuture<PageData<T>> searchPageChunkedAsync(JestClient jestClient, EsSearchParams params, Class<T> clazz) {
+        String fieldName = findChunkedTermsField(params);
+        List<Object> values = new ArrayList<>(params.getTermsFieldMap().get(fieldName));
+        List<CompletableFuture<List<JsonObject>>> futures = new ArrayList<>();
+        for (int from = 0; from < values.size(); from += TERMS_CHUNK_SIZE) {
+            List<Object> chunk = values.subList(from, Math.min(from + TERMS_CHUNK_SIZE, values.size()));
+            EsSearchParams chunkParams = params.copy();
+            chunkParams.getTermsFieldMap().put(fieldName, chunk);
+            chunkParams.setSearchAfter(null);
+            chunkParams.setPageParams(0, PAGE_SIZE_MAX);
+            futures.add(searchAllHitsAsync(jestClient, chunkParams, new ArrayList<>()));
+        }
+        return JestAsync.allOf(futures).thenApply(chunks -> {
+            //同一文档可能被多组值命中
+            Map<String, JsonObject> merged = new LinkedHashMap<>();
+            for (List<JsonObject> chunkHits : chunks) {
+                for (JsonObject hit : chunkHits) {
+                    merged.putIfAbsent(hitKey(hit), hit);
+                }
+            }
+            List<JsonObject> hits = new ArrayList<>(merged.values());
+            boolean desc = !checkIsEmpty(params.getSortFieldName()) && params.getSortMode() == Sort.Sorting.DESC;
+            hits.sort((a, b) -> compareSortValues(a.get("sort"), b.get("sort"), desc));
+            //超出范围时为空集合 total仍为命中数
+            int from = Math.min(params.getPage() * params.getPageSize(), hits.size());
+            Gson gson = getGson(jestClient);
+            List<T> dataList = new ArrayList<>();
+            for (JsonObject hit : hits.subList(from, Math.min(from + params.getPageSize(), hits.size()))) {
+                JsonElement source = hit.get("_source");
+                T entity = params.hasFieldProjection() ? gson.fromJson(mergeFields(source, hit.get("fields")), clazz)
+                        : source == null || source.isJsonNull() ? gson.fromJson("{}", clazz) : gson.fromJson(source, clazz);
+                EsIdBinder.bind(entity, hit.has("_id") ? hit.get("_id").getAsString() : null);
+                dataList.add(entity);
+            }
+            return toPageData(dataList, hits.size(), params, clazz);
+        });
+    }
+
+    //用search_after逐页异步取完一个子请求的全部hit 上一页返回后再请求下一页
+    private static CompletableFuture<List<JsonObject>> searchAllHitsAsync(JestClient jestClient, EsSearchParams params, List<JsonObject> hits) {
+        return searchResultAsync(jestClient, params, true).thenCompose(result -> {
+            if (!result.isSucceeded()) {
+                throw new IllegalStateException("分组搜索失败: " + result.getErrorMessage());
+            }
+            JsonObject jsonObject = result.getJsonObject();
+            JsonArray page = jsonObject.has("hits") ? jsonObject.getAsJsonObject("hits").getAsJsonArray("hits") : null;
+            if (page == null || page.size() == 0) {
+                return CompletableFuture.completedFuture(hits);
+            }
+            for (JsonElement hit : page) {
+                hits.add(hit.getAsJsonObject());
+            }
+            if (page.size() < params.getPageSize()) {
+                return CompletableFuture.completedFuture(hits);
+            }
+            params.setSearchAfter(createCursor(result));
+            return searchAllHitsAsync(jestClient, params, hits);
+        });
+    }
+
+    private static String hitKey(JsonObject hit) {
+        return hit.get("_index").getAsString() + "/" + hit.get("_type").getAsString() + "/" + hit.get("_id").getAsString();
+    }
+
+    //按hit的sort数组比较 第一个值按调用方的排序方向，其余(唯一标识)升序；缺失值与ES默认一致排在最后
+    private static int compareSortValues(JsonElement a, JsonElement b, boolean desc) {
+        JsonArray left = a != null && a.isJsonArray() ? a.getAsJsonArray() : new JsonArray();
+        JsonArray right = b != null && b.isJsonArray() ? b.getAsJsonArray() : new JsonArray();
+        for (int i = 0; i < Math.min(left.size(), right.size()); i++) {
+            JsonElement x = left.get(i);
+            JsonElement y = right.get(i);
+            boolean xNull = x == null || x.isJsonNull();
+            boolean yNull = y == null || y.isJsonNull();
+            int c;
+            if (xNull || yNull) {
+                c = xNull == yNull ? 0 : xNull ? 1 : -1;
+            } else {
+                if (x.isJsonPrimitive() && y.isJsonPrimitive() && x.getAsJsonPrimitive().isNumber() && y.getAsJsonPrimitive().isNumber()) {
+                    c = x.getAsBigDecimal().compareTo(y.getAsBigDecimal());
+                } else {
+                    c = (x.isJsonPrimitive() ? x.getAsString() : x.toString()).compareTo(y.isJsonPrimitive() ? y.getAsString() : y.toString());
+                }
+                if (desc && i == 0) {
+                    c = -c;
+                }
+            }
+            if (c != 0) {
+                return c;
+            }
+        }
+        return left.size() - right.size();
+    }
+
+    /**
+     * 把hit的_source和fields合并后转换为实体 fields中只有一个值的字段取该值
+     *
+     * @param result
+     * @param gson
+     * @param clazz
+     * @param <T>
+     * @return 没有数据时为null
+     */
+    private static <T> List<T> converWithFields(SearchResult result, Gson gson, Class<T> clazz) {
+        JsonObject jsonObject = result.getJsonObject();
+        if (jsonObject == null || !jsonObject.has("hits")) {
+            return null;
+        }
+        JsonArray hits = jsonObject.getAsJsonObject("hits").getAsJsonArray("hits");
+        if (hits == null || hits.size() == 0) {
+            return null;
+        }
+        List<T> list = new ArrayList<>(hits.size());
+        for (JsonElement element : hits) {
+            JsonObject hit = element.getAsJsonObject();
+            JsonElement source = hit.get("_source");
+            JsonElement fields = hit.get("fields");
+            T entity = gson.fromJson(mergeFields(source, fields), clazz);
+            EsIdBinder.bind(entity, hit.has("_id") ? hit.get("_id").getAsString() : null);
+            list.add(entity);
+        }
+        return list;
+    }
+
+    /**
+     * 合并_source和fields 不修改原对象
+     *
+     * @param source
+     * @param fields
+     * @return
+     */
+    static JsonObject mergeFields(JsonElement source, JsonElement fields) {
+        JsonObject merged = new JsonObject();
+        if (source != null && source.isJsonObject()) {
+            for (Map.Entry<String, JsonElement> entry : source.getAsJsonObject().entrySet()) {
+                merged.add(entry.getKey(), entry.getValue());
+            }
+        }
+        if (fields != null && fields.isJsonObject()) {
+            for (Map.Entry<String, JsonElement> entry : fields.getAsJsonObject().entrySet()) {
+                JsonElement value = entry.getValue();
+                if (value.isJsonArray() && value.getAsJsonArray().size() == 1) {
+                    value = value.getAsJsonArray().get(0);
+                }
+                merged.add(entry.getKey(), value);
+            }
+        }
+        return merged;
+    }
+
+    //与converFromHitList一致 没有数据时返回null
+    private static <T> List<T> toDataList(StreamingSearchResult<T> result) {
+        List<T> dataList = result.getDataList();
+        return dataList.isEmpty() ? null : dataList;
+    }
+
+    //解析hit并记录耗时和条数
+    private static <T> List<T> convertHits(JestClient jestClient, SearchResult result, EsSearchParams params, Class<T> clazz) {
+        long start = EsMetrics.start();
+        List<T> dataList = params.hasFieldProjection() ? converWithFields(result, getGson(jestClient), clazz) : ESUtils.converFromHitList(result.getHits(clazz));
+        if (start != 0) {
+            EsMetrics.lap(EsMetrics.OP_SEARCH, params.getIndex(), params.getType(), EsMetrics.CONVERT, start);
+            EsMetrics.value(EsMetrics.OP_SEARCH, params.getIndex(), params.getType(), EsMetrics.HITS, dataList == null ? 0 : dataList.size());
+        }
+        return dataList;
+    }
+
+    private static <T> PageData<T> toPageData(JestClient jestClient, SearchResult result, EsSearchParams params, Class<T> clazz) {
         if (result == null || !result.isSucceeded()) {
             return PageData.buildNull();
         }
-        List<SearchResult.Hit<T, Void>> hits = result.getHits(clazz);
-        List<T> dataList = ESUtils.converFromHitList(hits);
+        List<T> dataList = convertHits(jestClient, result, params, clazz);
         if (dataList == null) {
             return PageData.buildNull();
         }
-        int page = params.getPage();
-        int pageSize = params.getPageSize();
         long total = 0;
         try {
             total = result.getTotal();
         } catch (NoSuchMethodError e) {
             throw new RuntimeException("有问题");
         }
+        return toPageData(dataList, total, params, clazz);
+    }
+
+    private static <T> PageData<T> toPageData(StreamingSearchResult<T> result, EsSearchParams params, Class<T> clazz) {
+        if (result == null || !result.isSucceeded()) {
+            return PageData.buildNull();
+        }
+        List<T> dataList = toDataList(result);
+        if (dataList == null) {
+            return PageData.buildNull();
+        }
+        return toPageData(dataList, result.getTotal(), params, clazz);
+    }
+
+    private static <T> PageData<T> toPageData(List<T> dataList, long total, EsSearchParams params, Class<T> clazz) {
+        int page = params.getPage();
+        int pageSize = params.getPageSize();
+        return PageData.get(clazz)
+                .setPage(page)
+                .setPageSize(pageSize)
+                .setTotal(total)
+                .setHasNext((page + 1) * pageSize < total)
+                .setDataList(dataList);
+    }
+
+    /**
+     * 游标分页搜索(search_after)
+     * 首页不设置游标，之后把上一页返回的nextCursor设置到params.searchAfter
+     * 每页的服务端开销与翻页深度无关，不受max_result_window限制
+     *
+     * @param jestClient
+     * @param params
+     * @param clazz
+     * @param <T>
+     * @return
+     */
+    public static <T> PageData<T> searchPageByCursor(JestClient jestClient, EsSearchParams params, Class<T> clazz) {
+        if (streamingHits) {
+            StreamingSearchResult<T> result = searchStreaming(jestClient, params, clazz, true);
+            if (result == null || !result.isSucceeded()) {
+                return PageData.buildNull();
+            }
+            List<T> dataList = toDataList(result);
+            if (dataList == null) {
+                return PageData.buildNull();
+            }
+            return PageData.get(clazz)
+                    .setPage(params.getPage())
+                    .setPageSize(params.getPageSize())
+                    .setTotal(result.getTotal())
+                    .setHasNext(dataList.size() >= params.getPageSize())
+                    .setNextCursor(encodeCursor(result.getLastSort()))
+                    .setDataList(dataList);
+        }
+        SearchResult result = searchResult(jestClient, params, true);
+        if (result == null || !result.isSucceeded()) {
+            return PageData.buildNull();
+        }
+        List<T> dataList = convertHits(jestClient, result, params, clazz);
+        if (dataList == null) {
+            return PageData.buildNull();
+        }
+        int pageSize = params.getPageSize();
+        Long total = result.getTotal();
+        return PageData.get(clazz)
+                .setPage(params.getPage())
+                .setPageSize(pageSize)
+                .setTotal(total == null ? 0 : total)
+                .setHasNext(dataList.size() >= pageSize)
+                .setNextCursor(createCursor(result))
+                .setDataList(dataList);
+    }
+
+    /**
+     * 统计符合条件的数量 不返回hit
+     *
+     * @param jestClient
+     * @param params     分页、排序和字段参数不生效
+     * @return 请求失败时为null
+     */
+    public static Long count(JestClient jestClient, EsSearchParams params) {
+        SearchResult result = countResult(jestClient, params, false);
+        return result == null || !result.isSucceeded() ? null : result.getTotal();
+    }
+
+    /**
+     * 是否存在符合条件的数据 每个分片找到一条即停止
+     *
+     * @param jestClient
+     * @param params     分页、排序和字段参数不生效
+     * @return 请求失败时为false
+     */
+    public static boolean exists(JestClient jestClient, EsSearchParams params) {
+        SearchResult result = countResult(jestClient, params, true);
+        if (result == null || !result.isSucceeded()) {
+            return false;
+        }
+        Long total = result.getTotal();
+        return total != null && total > 0;
+    }
+
+    public static CompletableFuture<Long> countAsync(JestClient jestClient, EsSearchParams params) {
+        return countResultAsync(jestClient, params, false)
+                .thenApply(result -> result == null || !result.isSucceeded() ? null : result.getTotal());
+    }
+
+    public static CompletableFuture<Boolean> existsAsync(JestClient jestClient, EsSearchParams params) {
+        return countResultAsync(jestClient, params, true).thenApply(result -> {
+            if (result == null || !result.isSucceeded()) {
+                return false;
+            }
+            Long total = result.getTotal();
+            return total != null && total > 0;
+        });
+    }
+
+    /**
+     * 聚合搜索 size为0，只返回聚合结果
+     * 聚合通过{@link EsSearchParams#addAggregation}添加
+     *
+     * @param jestClient
+     * @param params     分页、排序和字段参数不生效
+     * @return 请求失败时为null
+     */
+    public static AggregationData aggregate(JestClient jestClient, EsSearchParams params) {
+        return aggregate(jestClient, params, null);
+    }
+
+    /**
+     * 聚合搜索 composite聚合从afterKey之后开始
+     *
+     * @param jestClient
+     * @param params
+     * @param afterKey   上一页的after_key json 为null时从第一页开始
+     * @return 请求失败时为null
+     */
+    static AggregationData aggregate(JestClient jestClient, EsSearchParams params, String afterKey) {
+        SearchResult result = searchResult(jestClient, params, EsMetrics.OP_AGGREGATE, (bqb, binder) -> buildAggregationBody(params, bqb, binder, afterKey));
+        return toAggregationData(result, params);
+    }
+
+    public static CompletableFuture<AggregationData> aggregateAsync(JestClient jestClient, EsSearchParams params) {
+        return searchResultAsync(jestClient, params, EsMetrics.OP_AGGREGATE, (bqb, binder) -> buildAggregationBody(params, bqb, binder, null))
+                .thenApply(result -> toAggregationData(result, params));
+    }
+
+    /**
+     * 按条件批量更新 在ES服务端执行，不需要先查出再逐条写回
+     * 以后台任务提交，通过返回的EsTask查询进度或等待完成 任务结束前该index/type的搜索结果不缓存
+     *
+     * @param jestClient
+     * @param params       查询条件 分页、排序和字段参数不生效
+     * @param script       更新脚本 如 ctx._source.status = params.status 为null时只重新索引符合条件的文档
+     * @param scriptParams 脚本参数 可以为null
+     * @param options      为null时使用默认参数
+     * @return 提交失败时为null
+     */
+    public static EsTask updateByQuery(JestClient jestClient, EsSearchParams params, String script, Map<String, ?> scriptParams, ByQueryOptions options) {
+        String scriptJson = script == null ? null : buildScriptJson(jestClient, script, scriptParams);
+        String body = buildQuery(jestClient, params, EsMetrics.OP_UPDATE_BY_QUERY, (bqb, binder) -> buildByQueryBody(bqb, binder, EsMetrics.OP_UPDATE_BY_QUERY, scriptJson));
+        UpdateByQuery.Builder builder = new UpdateByQuery.Builder(body)
+                .addIndex(params.getIndex())
+                .addType(params.getType());
+        (options == null ? ByQueryOptions.get() : options).applyTo(builder);
+        return submitByQuery(jestClient, params, EsMetrics.OP_UPDATE_BY_QUERY, body, builder.build());
+    }
+
+    /**
+     * 按条件批量删除 在ES服务端执行
+     * 以后台任务提交，通过返回的EsTask查询进度或等待完成 任务结束前该index/type的搜索结果不缓存
+     *
+     * @param jestClient
+     * @param params     查询条件 分页、排序和字段参数不生效
+     * @param options    为null时使用默认参数
+     * @return 提交失败时为null
+     */
+    public static EsTask deleteByQuery(JestClient jestClient, EsSearchParams params, ByQueryOptions options) {
+        String body = buildQuery(jestClient, params, EsMetrics.OP_DELETE_BY_QUERY, (bqb, binder) -> buildByQueryBody(bqb, binder, EsMetrics.OP_DELETE_BY_QUERY, null));
+        DeleteByQuery.Builder builder = new DeleteByQuery.Builder(body)
+                .addIndex(params.getIndex())
+                .addType(params.getType());
+        (options == null ? ByQueryOptions.get() : options).applyTo(builder);
+        return submitByQuery(jestClient, params, EsMetrics.OP_DELETE_BY_QUERY, body, builder.build());
+    }
+
+    //提交后台任务 响应为{"task":"node:id"} 任务结束前该index/type的搜索不使用缓存
+    private static EsTask submitByQuery(JestClient jestClient, EsSearchParams params, String operation, String body, Action<? extends JestResult> action) {
+        SearchResultCache.taskStarted(params.getIndex(), params.getType());
+        boolean submitted = false;
+        try {
+            long start = EsMetrics.start();
+            JestResult result = jestClient.execute(action);
+            EsMetrics.lap(operation, params.getIndex(), params.getType(), EsMetrics.HTTP, start);
+            EsMetrics.response(operation, params.getIndex(), params.getType(), body, result);
+            if (!result.isSucceeded()) {
+                return null;
+            }
+            JsonElement task = result.getJsonObject().get("task");
+            if (task == null || task.isJsonNull()) {
+                return null;
+            }
+            EsTask esTask = EsTask.watch(jestClient, task.getAsString(), params.getIndex(), params.getType());
+            submitted = true;
+            return esTask;
+        } catch (IOException e) {
+            e.printStackTrace();
+            //logger.d("提交失败");
+        } finally {
+            if (!submitted) {
+                SearchResultCache.taskEnded(params.getIndex(), params.getType());
+            }
+        }
+        return null;
+    }
+
+    //脚本json 与PartialUpdate的脚本格式一致
+    private static String buildScriptJson(JestClient jestClient, String script, Map<String, ?> scriptParams) {
+        JsonObject scriptJson = new JsonObject();
+        scriptJson.addProperty(PartialUpdate.getScriptSourceName(), script);
+        if (scriptParams != null) {
+            scriptJson.add("params", getGson(jestClient).toJsonTree(scriptParams));
+        }
+        return scriptJson.toString();
+    }
+
+    /**
+     * update_by_query/delete_by_query的请求体 只包含query和script
+     *
+     * @param bqb
+     * @param binder
+     * @param operation
+     * @param scriptJson 值通过binder绑定 为null时没有script
+     * @return
+     */
+    private static String buildByQueryBody(BoolQueryBuilder bqb, QueryTemplate.Binder binder, String operation, String scriptJson) {
+        binder.shape(operation);
+        String script = scriptJson == null ? null : binder.json(binder.bind("script", null, QueryTemplate.raw(scriptJson)));
+        return binder.render(null, () -> {
+            SearchSourceBuilder ssb = new SearchSourceBuilder();
+            ssb.query(bqb);
+            String json = ssb.toString();
+            return script == null ? json : appendJsonField(json, "script", script);
+        });
+    }
+
+    private static SearchResult countResult(JestClient jestClient, EsSearchParams params, boolean exists) {
+        return searchResult(jestClient, params, exists ? EsMetrics.OP_EXISTS : EsMetrics.OP_COUNT, (bqb, binder) -> buildCountBody(bqb, exists, binder));
+    }
+
+    private static CompletableFuture<SearchResult> countResultAsync(JestClient jestClient, EsSearchParams params, boolean exists) {
+        return searchResultAsync(jestClient, params, exists ? EsMetrics.OP_EXISTS : EsMetrics.OP_COUNT, (bqb, binder) -> buildCountBody(bqb, exists, binder));
+    }
+
+    //使用指定请求体执行搜索 经过搜索结果缓存，不经过_msearch合并
+    private static SearchResult searchResult(JestClient jestClient, EsSearchParams params, String operation, BiFunction<BoolQueryBuilder, QueryTemplate.Binder, String> bodyRenderer) {
+        String query = buildQuery(jestClient, params, operation, bodyRenderer);
+        long generation = SearchResultCache.generation(params.getIndex(), params.getType());
+        SearchResult cached = SearchResultCache.get(params.getIndex(), params.getType(), query);
+        if (cached != null) {
+            return cached;
+        }
+        try {
+            long start = EsMetrics.start();
+            SearchResult result = jestClient.execute(newSearch(params, query));
+            EsMetrics.lap(operation, params.getIndex(), params.getType(), EsMetrics.HTTP, start);
+            EsMetrics.response(operation, params.getIndex(), params.getType(), query, result);
+            SearchResultCache.put(params.getIndex(), params.getType(), query, result, generation);
+            return result;
+        } catch (IOException e) {
+            //logger.d("ES读取异常");
+        }
+        return null;
+    }
+
+    private static CompletableFuture<SearchResult> searchResultAsync(JestClient jestClient, EsSearchParams params, String operation, BiFunction<BoolQueryBuilder, QueryTemplate.Binder, String> bodyRenderer) {
+        return buildQueryAsync(jestClient, params, operation, bodyRenderer).thenCompose(query -> {
+            long generation = SearchResultCache.generation(params.getIndex(), params.getType());
+            SearchResult cached = SearchResultCache.get(params.getIndex(), params.getType(), query);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached);
+            }
+            long start = EsMetrics.start();
+            return JestAsync.execute(jestClient, newSearch(params, query)).thenApply(result -> {
+                EsMetrics.lap(operation, params.getIndex(), params.getType(), EsMetrics.HTTP, start);
+                EsMetrics.response(operation, params.getIndex(), params.getType(), query, result);
+                SearchResultCache.put(params.getIndex(), params.getType(), query, result, generation);
+                return result;
+            });
+        });
+    }
+
+    /**
+     * 分页搜索(from/size) searchAfter游标只在searchPageByCursor中生效
+     *
+     * @param jestClient
+     * @param params
+     * @return 请求异常时为null
+     */
+    public static SearchResult searchResult(JestClient jestClient, EsSearchParams params) {
+        return searchResult(jestClient, params, false);
+    }
+
+    private static SearchResult searchResult(JestClient jestClient, EsSearchParams params, boolean cursorMode) {
+        String query = buildQuery(jestClient, params, cursorMode);
+        long generation = SearchResultCache.generation(params.getIndex(), params.getType());
+        SearchResult cached = SearchResultCache.get(params.getIndex(), params.getType(), query);
+        if (cached != null) {
+            return cached;
+        }
+        try {
+            long start = EsMetrics.start();
+            Search search = newSearch(params, query);
+            MultiSearchCoalescer coalescer = coalescerOf(jestClient);
+            SearchResult result = coalescer == null ? jestClient.execute(search) : coalescer.search(search);
+            EsMetrics.lap(EsMetrics.OP_SEARCH, params.getIndex(), params.getType(), EsMetrics.HTTP, start);
+            EsMetrics.response(EsMetrics.OP_SEARCH, params.getIndex(), params.getType(), query, result);
+            SearchResultCache.put(params.getIndex(), params.getType(), query, result, generation);
+            return result;
+        } catch (IOException e) {
+            //logger.d("ES读取异常");
+            //e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * 异步执行搜索 请求异常或超时时future异常结束
+     *
+     * @param jestClient
+     * @param params
+     * @return
+     */
+    public static CompletableFuture<SearchResult> searchResultAsync(JestClient jestClient, EsSearchParams params) {
+        return searchResultAsync(jestClient, params, false);
+    }
+
+    private static CompletableFuture<SearchResult> searchResultAsync(JestClient jestClient, EsSearchParams params, boolean cursorMode) {
+        return buildQueryAsync(jestClient, params, cursorMode).thenCompose(query -> {
+            long generation = SearchResultCache.generation(params.getIndex(), params.getType());
+            SearchResult cached = SearchResultCache.get(params.getIndex(), params.getType(), query);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached);
+            }
+            long start = EsMetrics.start();
+            Search search = newSearch(params, query);
+            MultiSearchCoalescer coalescer = coalescerOf(jestClient);
+            CompletableFuture<SearchResult> future = coalescer == null ? JestAsync.execute(jestClient, search) : coalescer.submit(search);
+            return future.thenApply(result -> {
+                EsMetrics.lap(EsMetrics.OP_SEARCH, params.getIndex(), params.getType(), EsMetrics.HTTP, start);
+                EsMetrics.response(EsMetrics.OP_SEARCH, params.getIndex(), params.getType(), query, result);
+                SearchResultCache.put(params.getIndex(), params.getType(), query, result, generation);
+                return result;
+            });
+        });
+    }
+
+    //构建最终请求体 包括极值查询
+    private static String buildQuery(JestClient jestClient, EsSearchParams params, boolean cursorMode) {
+        return buildQuery(jestClient, params, EsMetrics.OP_SEARCH, (bqb, binder) -> buildSearchBody(params, bqb, cursorMode, binder));
+    }
+
+    private static CompletableFuture<String> buildQueryAsync(JestClient jestClient, EsSearchParams params, boolean cursorMode) {
+        return buildQueryAsync(jestClient, params, EsMetrics.OP_SEARCH, (bqb, binder) -> buildSearchBody(params, bqb, cursorMode, binder));
+    }
+
+    /**
+     * 构建查询条件和极值条件，再由bodyRenderer生成请求体
+     *
+     * @param jestClient
+     * @param params
+     * @param operation    记录构建和序列化耗时的操作名 见EsMetrics.OP_*
+     * @param bodyRenderer 查询条件和值绑定器 -> 请求体
+     * @return
+     */
+    private static String buildQuery(JestClient jestClient, EsSearchParams params, String operation, BiFunction<BoolQueryBuilder, QueryTemplate.Binder, String> bodyRenderer) {
+        long start = EsMetrics.start();
+        QueryTemplate.Binder binder = QueryTemplate.binder();
+        List<QueryBuilder> queryBuilderList = new ArrayList<>();//搜集查询条件
+        BoolQueryBuilder bqb = buildBoolQuery(params, queryBuilderList, binder);
+        EsMetrics.lap(operation, params.getIndex(), params.getType(), EsMetrics.BUILD, start);
+        ////5. 极值聚合查询 所有极值字段合并为一次多聚合请求
+        Map<String, Boolean> extremeFieldMap = params.getExtremeFieldMap();
+        if (extremeFieldMap != null && extremeFieldMap.size() > 0) {
+            String extremeQuery = buildExtremeQuery(binder, extremeFieldMap, queryBuilderListToArrays(queryBuilderList));
+            Map<String, Long> extremeValues = searchExtremeValues(jestClient, params.getIndex(), params.getType(), extremeFieldMap, extremeQuery);
+            addExtremeQueryBuilders(bqb, extremeValues, binder, params.isScoring());
+        }
+        start = EsMetrics.start();
+        String query = bodyRenderer.apply(bqb, binder);
+        EsMetrics.lap(operation, params.getIndex(), params.getType(), EsMetrics.SERIALIZE, start);
+        return query;
+    }
+
+    private static CompletableFuture<String> buildQueryAsync(JestClient jestClient, EsSearchParams params, String operation, BiFunction<BoolQueryBuilder, QueryTemplate.Binder, String> bodyRenderer) {
+        long buildStart = EsMetrics.start();
+        QueryTemplate.Binder binder = QueryTemplate.binder();
+        List<QueryBuilder> queryBuilderList = new ArrayList<>();
+        BoolQueryBuilder bqb = buildBoolQuery(params, queryBuilderList, binder);
+        EsMetrics.lap(operation, params.getIndex(), params.getType(), EsMetrics.BUILD, buildStart);
+        Map<String, Boolean> extremeFieldMap = params.getExtremeFieldMap();
+        CompletableFuture<Map<String, Long>> extremeFuture = CompletableFuture.completedFuture(null);
+        if (extremeFieldMap != null && extremeFieldMap.size() > 0) {
+            String extremeQuery = buildExtremeQuery(binder, extremeFieldMap, queryBuilderListToArrays(queryBuilderList));
+            extremeFuture = searchExtremeValuesAsync(jestClient, params.getIndex(), params.getType(), extremeFieldMap, extremeQuery);
+        }
+        return extremeFuture.thenApply(extremeValues -> {
+            long start = EsMetrics.start();
+            addExtremeQueryBuilders(bqb, extremeValues, binder, params.isScoring());
+            String query = bodyRenderer.apply(bqb, binder);
+            EsMetrics.lap(operation, params.getIndex(), params.getType(), EsMetrics.SERIALIZE, start);
+            return query;
+        });
+    }
+
+    /**
+     * 流式解析hit的搜索 不经过搜索结果缓存和_msearch合并
+     *
+     * @param jestClient
+     * @param params
+     * @param clazz
+     * @param cursorMode
+     * @param <T>
+     * @return 请求异常时为null
+     */
+    private static <T> StreamingSearchResult<T> searchStreaming(JestClient jestClient, EsSearchParams params, Class<T> clazz, boolean cursorMode) {
+        String query = buildQuery(jestClient, params, cursorMode);
+        try {
+            long start = EsMetrics.start();
+            StreamingSearchResult<T> result = jestClient.execute(new StreamingSearch<>(newSearch(params, query), clazz, params.hasFieldProjection()));
+            recordStreaming(params, query, result, start);
+            return result;
+        } catch (IOException e) {
+            //logger.d("ES读取异常");
+        }
+        return null;
+    }
+
+    private static <T> CompletableFuture<StreamingSearchResult<T>> searchStreamingAsync(JestClient jestClient, EsSearchParams params, Class<T> clazz) {
+        return buildQueryAsync(jestClient, params, false).thenCompose(query -> {
+            long start = EsMetrics.start();
+            return JestAsync.execute(jestClient, new StreamingSearch<>(newSearch(params, query), clazz, params.hasFieldProjection())).thenApply(result -> {
+                recordStreaming(params, query, result, start);
+                return result;
+            });
+        });
+    }
+
+    //流式解析在请求中完成 http阶段包含解析耗时
+    private static void recordStreaming(EsSearchParams params, String query, StreamingSearchResult<?> result, long start) {
+        if (start == 0) {
+            return;
+        }
+        EsMetrics.lap(EsMetrics.OP_SEARCH, params.getIndex(), params.getType(), EsMetrics.HTTP, start);
+        EsMetrics.value(EsMetrics.OP_SEARCH, params.getIndex(), params.getType(), EsMetrics.REQUEST_BYTES, EsMetrics.utf8Length(query));
+        if (result != null && result.isSucceeded()) {
+            EsMetrics.value(EsMetrics.OP_SEARCH, params.getIndex(), params.getType(), EsMetrics.RESPONSE_BYTES, result.getResponseLength());
+            EsMetrics.value(EsMetrics.OP_SEARCH, params.getIndex(), params.getType(), EsMetrics.TOOK, result.getTook());
+            EsMetrics.value(EsMetrics.OP_SEARCH, params.getIndex(), params.getType(), EsMetrics.HITS, result.getDataList().size());
+        }
+    }
 
-        //logger.d("ElasticSearch Data Search time： " + (System.currentTimeMillis() - startTime) + " ms");
-        return PageData.get(clazz)
-                .setPage(page)
-                .setPageSize(pageSize)
-                .setTotal(total)
-                .setHasNext((page + 1) * pageSize < total)
-                .setDataList(dataList);
+    private static MultiSearchCoalescer coalescerOf(JestClient jestClient) {
+        MultiSearchCoalescer coalescer = multiSearchCoalescer;
+        return coalescer != null && coalescer.getJestClient() == jestClient ? coalescer : null;
     }
 
-    public static SearchResult searchResult(JestClient jestClient, EsSearchParams params) {
-        SearchSourceBuilder ssb = new SearchSourceBuilder();
+    /**
+     * 把搜索参数转换为bool查询 不包含极值条件
+     *
+     * @param params
+     * @param queryBuilderList 搜集的查询条件 用于极值聚合
+     * @param binder           查询中的值通过binder绑定，以便复用查询模板
+     * @return
+     */
+    private static BoolQueryBuilder buildBoolQuery(EsSearchParams params, List<QueryBuilder> queryBuilderList, QueryTemplate.Binder binder) {
         BoolQueryBuilder bqb = QueryBuilders.boolQuery();
-        List<QueryBuilder> queryBuilderList = new ArrayList<>();//搜集查询条件
+        //精确匹配、区间和极值条件默认放在filter中 不计算评分，可被节点缓存
+        boolean scoring = params.isScoring();
+        binder.shape(scoring ? "scoring" : "filter");
         //构建多条件查询
         ////1.一个字段对应一个关键字
         Map<String, Object> fieldMap = params.getFieldMap();
@@ -176,22 +1139,36 @@ public class ESUtils {
                 if (checkIsEmpty(value)) {
                     continue;
                 }
-                termQueryBuilder = QueryBuilders.termQuery(entry.getKey(), value);
-                bqb.must(termQueryBuilder);
+                termQueryBuilder = QueryBuilders.termQuery(entry.getKey(), binder.bind("term", entry.getKey(), value));
+                addNonScoring(bqb, termQueryBuilder, scoring);
                 queryBuilderList.add(termQueryBuilder);
             }
         }
 
+        ////1-2.一个字段对应多个关键字 一个terms查询
+        Map<String, Collection<?>> termsFieldMap = params.getTermsFieldMap();
+        if (termsFieldMap != null && termsFieldMap.size() > 0) {
+            for (Map.Entry<String, Collection<?>> entry : termsFieldMap.entrySet()) {
+                Collection<?> values = entry.getValue();
+                if (values == null || values.isEmpty()) {
+                    continue;
+                }
+                TermsQueryBuilder termsQueryBuilder = QueryBuilders.termsQuery(entry.getKey(), binder.bindAll("terms", entry.getKey(), values));
+                addNonScoring(bqb, termsQueryBuilder, scoring);
+                queryBuilderList.add(termsQueryBuilder);
+            }
+        }
+
         ////2-1.单字段匹配模糊查询 should
         Map<String, String> shouldWildcardFieldMap = params.getShouldWildcardFieldMap();
-        WildcardQueryBuilder shouldWildcardQueryBuilder = null;
+        QueryBuilder shouldWildcardQueryBuilder = null;
         if (shouldWildcardFieldMap != null && shouldWildcardFieldMap.size() > 0) {
             for (Map.Entry<String, String> entry : shouldWildcardFieldMap.entrySet()) {
                 String keyWords = entry.getValue();//模糊查询关键字 需要添加通配符
                 if (checkIsEmpty(keyWords)) {
                     continue;
                 }
-                shouldWildcardQueryBuilder = QueryBuilders.wildcardQuery(entry.getKey(), keyWords);
+                shouldWildcardQueryBuilder = WildcardQueries.build("should_wildcard", entry.getKey(), keyWords, binder);
                 bqb.should(shouldWildcardQueryBuilder);
                 queryBuilderList.add(shouldWildcardQueryBuilder);
             }
@@ -199,14 +1176,14 @@ public class ESUtils {
 
         ////2-2.单字段匹配模糊查询 must
         Map<String, String> mustWildcardFieldMap = params.getMustWildcardFieldMap();
-        WildcardQueryBuilder mustWildcardQueryBuilder = null;
+        QueryBuilder mustWildcardQueryBuilder = null;
         if (mustWildcardFieldMap != null && mustWildcardFieldMap.size() > 0) {
             for (Map.Entry<String, String> entry : mustWildcardFieldMap.entrySet()) {
                 String keyWords = entry.getValue();//模糊查询关键字 需要添加通配符
                 if (checkIsEmpty(keyWords)) {
                     continue;
                 }
-                mustWildcardQueryBuilder = QueryBuilders.wildcardQuery(entry.getKey(), keyWords);
+                mustWildcardQueryBuilder = WildcardQueries.build("must_wildcard", entry.getKey(), keyWords, binder);
                 bqb.must(mustWildcardQueryBuilder);
                 queryBuilderList.add(mustWildcardQueryBuilder);
             }
@@ -221,7 +1198,7 @@ public class ESUtils {
                 if (StringUtils.isEmpty(key) || StringUtils.isEmpty(key.trim()) || value == null || value.length == 0) {
                     continue;
                 }
-                multiMatchQueryBuilder = QueryBuilders.multiMatchQuery(key, value);
+                multiMatchQueryBuilder = QueryBuilders.multiMatchQuery(binder.bind("multi_match", String.join(",", value), key), value);
                 bqb.must(multiMatchQueryBuilder);
                 queryBuilderList.add(multiMatchQueryBuilder);
             }
@@ -233,6 +1210,7 @@ public class ESUtils {
             for (Map.Entry<String, String[]> entry : multiWildcardFieldMap.entrySet()) {
                 ////一个元素一个bool查询
                 BoolQueryBuilder mulBqb = QueryBuilders.boolQuery();
+                binder.shape("multi_wildcard");
                 ////取得共同的值
                 String valWord = entry.getKey();
                 ////取得所有的字段
@@ -242,7 +1220,7 @@ public class ESUtils {
                     if (checkIsEmpty(valWord)) {
                         continue;
                     }
-                    mustWildcardQueryBuilder = QueryBuilders.wildcardQuery(field, valWord);
+                    mustWildcardQueryBuilder = WildcardQueries.build("multi_wildcard", field, valWord, binder);
                     mulBqb.should(mustWildcardQueryBuilder);
                 }
                 bqb.must(mulBqb);
@@ -261,57 +1239,447 @@ public class ESUtils {
                     continue;
                 }
                 rangeQueryBuilder = QueryBuilders.rangeQuery(key)
-                        .gte(range.getMin())
-                        .lte(range.getMax());
-                bqb.must(rangeQueryBuilder);
+                        .gte(binder.bind("range_gte", key, range.getMin()))
+                        .lte(binder.bind("range_lte", key, range.getMax()));
+                addNonScoring(bqb, rangeQueryBuilder, scoring);
                 queryBuilderList.add(rangeQueryBuilder);
             }
         }
-        ////5. 极值聚合查询
-        Map<String, Boolean> extremeFieldMap = params.getExtremeFieldMap();
-        if (extremeFieldMap != null && extremeFieldMap.size() > 0) {
-            for (Map.Entry<String, Boolean> entry : extremeFieldMap.entrySet()) {
-                String fieldName = entry.getKey();
-                Boolean ismax = entry.getValue();
-
-                QueryBuilder[] queryBuilders = queryBuilderListToArrays(queryBuilderList);
-                if (ismax) {
-                    //最大值
-                    QueryBuilder maxQueryBuilder = createMaxQueryBuilder(jestClient, params.getIndex(), params.getType(), fieldName, queryBuilders);
-                    if (maxQueryBuilder != null) {
-                        bqb.must(maxQueryBuilder);
-                    }
+        return bqb;
+    }
 
-                } else {
-                    //最小值
-                    QueryBuilder minQueryBuilder = createMinQueryBuilder(jestClient, params.getIndex(), params.getType(), fieldName, queryBuilders);
-                    if (minQueryBuilder != null) {
-                        bqb.must(minQueryBuilder);
+    //不需要评分的条件 scoring为false时放在filter中
+    private static void addNonScoring(BoolQueryBuilder bqb, QueryBuilder queryBuilder, boolean scoring) {
+        if (scoring) {
+            bqb.must(queryBuilder);
+        } else {
+            bqb.filter(queryBuilder);
+        }
+    }
+
+    //构建带分页和排序的请求体 排序直接写入请求体，避免Jest对请求体再做一次解析
+    private static String buildSearchBody(EsSearchParams params, BoolQueryBuilder bqb, boolean cursorMode, QueryTemplate.Binder binder) {
+        int page = params.getPage();
+        int pageSize = params.getPageSize();
+        Object from = cursorMode ? null : binder.bind("from", null, page * pageSize);
+        Object size = binder.bind("size", null, pageSize);
+        String searchAfter = cursorMode ? decodeCursor(params.getSearchAfter()) : null;
+        Object boundSearchAfter = searchAfter == null ? null : binder.bind("search_after", null, QueryTemplate.raw(searchAfter));
+        String sortFieldName = params.getSortFieldName();
+        StringBuilder sort = new StringBuilder();
+        if (!checkIsEmpty(sortFieldName)) {
+            appendSort(sort, sortFieldName, params.getSortMode());
+        }
+        if (cursorMode) {
+            //游标分页需要唯一的排序，追加文档唯一标识作为最后的排序字段
+            appendSort(sort, CURSOR_TIE_BREAKER, Sort.Sorting.ASC);
+        }
+        binder.shape("sort:" + sort);
+        String source = buildSourceFilter(params);
+        String docValueFields = toJsonArray(params.getDocValueFields());
+        String storedFields = toJsonArray(params.getStoredFields());
+        if (source != null || docValueFields != null || storedFields != null) {
+            binder.shape("source:" + source + ";docvalue:" + docValueFields + ";stored:" + storedFields);
+        }
+
+        return binder.render(null, () -> {
+            SearchSourceBuilder ssb = new SearchSourceBuilder();
+            ssb.query(bqb);
+            String json = ssb.toString();
+            if (from != null) {
+                json = appendJsonField(json, "from", binder.json(from));//分页搜索
+            }
+            json = appendJsonField(json, "size", binder.json(size));
+            if (boundSearchAfter != null) {
+                json = appendJsonField(json, "search_after", binder.json(boundSearchAfter));
+            }
+            if (sort.length() > 0) {
+                json = appendJsonField(json, "sort", "[" + sort + "]");
+            }
+            if (source != null) {
+                json = appendJsonField(json, "_source", source);
+            }
+            if (docValueFields != null) {
+                json = appendJsonField(json, DOCVALUE_FIELDS_NAME, docValueFields);
+            }
+            if (storedFields != null) {
+                json = appendJsonField(json, STORED_FIELDS_NAME, storedFields);
+            }
+            return json;
+        });
+    }
+
+    /**
+     * 只统计数量的请求体 size为0时没有fetch阶段
+     *
+     * @param bqb
+     * @param exists 为true时每个分片找到一条即停止
+     * @param binder
+     * @return
+     */
+    private static String buildCountBody(BoolQueryBuilder bqb, boolean exists, QueryTemplate.Binder binder) {
+        binder.shape(exists ? "exists" : "count");
+        return binder.render(null, () -> {
+            SearchSourceBuilder ssb = new SearchSourceBuilder();
+            ssb.query(bqb);
+            ssb.size(0);
+            if (exists) {
+                ssb.terminateAfter(1);
+            }
+            return ssb.toString();
+        });
+    }
+
+    /**
+     * 只返回聚合结果的请求体
+     *
+     * @param params
+     * @param bqb
+     * @param binder
+     * @param afterKey composite聚合的after json 值通过binder绑定
+     * @return
+     * @throws IllegalArgumentException 没有聚合定义或afterKey无效
+     */
+    private static String buildAggregationBody(EsSearchParams params, BoolQueryBuilder bqb, QueryTemplate.Binder binder, String afterKey) {
+        List<EsAggregation> aggregations = params.getAggregations();
+        if (aggregations == null || aggregations.isEmpty()) {
+            throw new IllegalArgumentException("没有聚合定义");
+        }
+        String normalized = normalizeAfterKey(afterKey);
+        String after = normalized == null ? null : binder.json(binder.bind("after", null, QueryTemplate.raw(normalized)));
+        StringBuilder aggs = new StringBuilder();
+        appendAggregations(aggs, aggregations, after);
+        String aggsJson = aggs.toString();
+        binder.shape("aggs:" + aggsJson);
+        return binder.render(null, () -> {
+            SearchSourceBuilder ssb = new SearchSourceBuilder();
+            ssb.query(bqb);
+            ssb.size(0);
+            return appendJsonField(ssb.toString(), "aggs", aggsJson);
+        });
+    }
+
+    //聚合定义转换为json {"名称":{"类型":{参数},"aggs":{子聚合}}} after只用于composite
+    private static void appendAggregations(StringBuilder sb, List<EsAggregation> aggregations, String after) {
+        sb.append('{');
+        for (int i = 0; i < aggregations.size(); i++) {
+            EsAggregation aggregation = aggregations.get(i);
+            if (i > 0) {
+                sb.append(',');
+            }
+            QueryTemplate.writeString(sb, aggregation.getName());
+            sb.append(":{");
+            appendAggregationBody(sb, aggregation, after);
+            List<EsAggregation> subAggregations = aggregation.getSubAggregations();
+            if (subAggregations != null && !subAggregations.isEmpty()) {
+                sb.append(",\"aggs\":");
+                appendAggregations(sb, subAggregations, null);
+            }
+            sb.append('}');
+        }
+        sb.append('}');
+    }
+
+    //"类型":{参数}
+    private static void appendAggregationBody(StringBuilder sb, EsAggregation aggregation, String after) {
+        QueryTemplate.writeString(sb, aggregation.getType().name().toLowerCase());
+        if (aggregation.getType() == EsAggregation.Type.COMPOSITE) {
+            sb.append(":{\"sources\":[");
+            List<EsAggregation> sources = aggregation.getSources();
+            for (int i = 0; i < sources.size(); i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append('{');
+                QueryTemplate.writeString(sb, sources.get(i).getName());
+                sb.append(":{");
+                appendAggregationBody(sb, sources.get(i), null);
+                sb.append("}}");
+            }
+            sb.append(']');
+            if (aggregation.getSize() != null) {
+                sb.append(",\"size\":").append(aggregation.getSize());
+            }
+            if (after != null) {
+                sb.append(",\"after\":").append(after);
+            }
+            sb.append('}');
+            return;
+        }
+        sb.append(":{\"field\":");
+        QueryTemplate.writeString(sb, aggregation.getField());
+        if (aggregation.getSize() != null) {
+            sb.append(",\"size\":").append(aggregation.getSize());
+        }
+        if (aggregation.getInterval() != null) {
+            sb.append(",\"interval\":");
+            QueryTemplate.writeString(sb, aggregation.getInterval());
+        }
+        if (aggregation.getFormat() != null) {
+            sb.append(",\"format\":");
+            QueryTemplate.writeString(sb, aggregation.getFormat());
+        }
+        if (aggregation.getTimeZone() != null) {
+            sb.append(",\"time_zone\":");
+            QueryTemplate.writeString(sb, aggregation.getTimeZone());
+        }
+        if (aggregation.getMinDocCount() != null) {
+            sb.append(",\"min_doc_count\":").append(aggregation.getMinDocCount());
+        }
+        if (aggregation.getPercents() != null) {
+            sb.append(",\"percents\":[");
+            double[] percents = aggregation.getPercents();
+            for (int j = 0; j < percents.length; j++) {
+                if (j > 0) {
+                    sb.append(',');
+                }
+                sb.append(percents[j]);
+            }
+            sb.append(']');
+        }
+        sb.append('}');
+    }
+
+    private static AggregationData toAggregationData(SearchResult result, EsSearchParams params) {
+        if (result == null || !result.isSucceeded()) {
+            return null;
+        }
+        JsonObject jsonObject = result.getJsonObject();
+        Long total = result.getTotal();
+        JsonElement took = jsonObject.get("took");
+        AggregationData data = new AggregationData(total == null ? 0 : total, took == null ? 0 : took.getAsLong());
+        data.setAggregations(parseAggregations(jsonObject.getAsJsonObject("aggregations"), params.getAggregations()));
+        return data;
+    }
+
+    //按聚合定义解析结果 响应中没有的聚合跳过
+    private static Map<String, AggregationData.Result> parseAggregations(JsonObject aggregationsJson, List<EsAggregation> aggregations) {
+        Map<String, AggregationData.Result> results = new LinkedHashMap<>();
+        if (aggregationsJson == null || aggregations == null) {
+            return results;
+        }
+        for (EsAggregation aggregation : aggregations) {
+            JsonElement element = aggregationsJson.get(aggregation.getName());
+            if (element == null || !element.isJsonObject()) {
+                continue;
+            }
+            JsonObject json = element.getAsJsonObject();
+            AggregationData.Result result = new AggregationData.Result(aggregation.getName(), aggregation.getType());
+            if (aggregation.getType().isBucket()) {
+                JsonArray buckets = json.getAsJsonArray("buckets");
+                if (buckets != null) {
+                    for (JsonElement bucketElement : buckets) {
+                        JsonObject bucketJson = bucketElement.getAsJsonObject();
+                        JsonElement key = bucketJson.get("key");
+                        JsonElement keyAsString = bucketJson.get("key_as_string");
+                        AggregationData.Bucket bucket = new AggregationData.Bucket(key.isJsonObject() ? key.toString() : key.getAsString(),
+                                keyAsString == null ? null : keyAsString.getAsString(),
+                                bucketJson.get("doc_count").getAsLong());
+                        if (key.isJsonObject()) {
+                            Map<String, String> keys = new LinkedHashMap<>();
+                            for (Map.Entry<String, JsonElement> entry : key.getAsJsonObject().entrySet()) {
+                                keys.put(entry.getKey(), entry.getValue().isJsonNull() ? null : entry.getValue().getAsString());
+                            }
+                            bucket.setKeys(keys);
+                        }
+                        bucket.getAggregations().putAll(parseAggregations(bucketJson, aggregation.getSubAggregations()));
+                        result.getBuckets().add(bucket);
+                    }
+                }
+                if (aggregation.getType() == EsAggregation.Type.COMPOSITE) {
+                    //ES6.3以前没有after_key 使用最后一个桶的key
+                    JsonElement afterKey = json.get("after_key");
+                    List<AggregationData.Bucket> resultBuckets = result.getBuckets();
+                    if (afterKey != null && afterKey.isJsonObject()) {
+                        result.setAfterKey(afterKey.toString());
+                    } else if (!resultBuckets.isEmpty()) {
+                        result.setAfterKey(resultBuckets.get(resultBuckets.size() - 1).getKey());
+                    }
+                }
+            } else {
+                //percentiles的值在values中 ES2.x为对象，keyed为false时为数组
+                JsonElement values = aggregation.getType() == EsAggregation.Type.PERCENTILES ? json.get("values") : json;
+                if (values != null && values.isJsonObject()) {
+                    for (Map.Entry<String, JsonElement> entry : values.getAsJsonObject().entrySet()) {
+                        putAggregationValue(result, entry.getKey(), entry.getValue());
+                    }
+                } else if (values != null && values.isJsonArray()) {
+                    for (JsonElement value : values.getAsJsonArray()) {
+                        putAggregationValue(result, value.getAsJsonObject().get("key").getAsString(), value.getAsJsonObject().get("value"));
                     }
                 }
             }
+            results.put(aggregation.getName(), result);
         }
+        return results;
+    }
 
-        int page = params.getPage();
-        int pageSize = params.getPageSize();
-        ssb.query(bqb).from(page * pageSize).size(pageSize);//分页搜索
+    //只保留数值 没有数据时为null
+    private static void putAggregationValue(AggregationData.Result result, String key, JsonElement value) {
+        if (value == null || value.isJsonNull()) {
+            result.getValues().put(key, null);
+        } else if (value.isJsonPrimitive() && value.getAsJsonPrimitive().isNumber()) {
+            result.getValues().put(key, value.getAsDouble());
+        }
+    }
 
-        String query = ssb.toString();
-        Search.Builder builder = new Search.Builder(query)
+    //_source过滤 不过滤时为null
+    private static String buildSourceFilter(EsSearchParams params) {
+        if (!params.isFetchSource()) {
+            return "false";
+        }
+        String includes = toJsonArray(params.getSourceIncludes() == null ? null : Arrays.asList(params.getSourceIncludes()));
+        String excludes = toJsonArray(params.getSourceExcludes() == null ? null : Arrays.asList(params.getSourceExcludes()));
+        if (includes == null && excludes == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder("{");
+        if (includes != null) {
+            sb.append("\"includes\":").append(includes);
+        }
+        if (excludes != null) {
+            if (includes != null) {
+                sb.append(',');
+            }
+            sb.append("\"excludes\":").append(excludes);
+        }
+        return sb.append('}').toString();
+    }
+
+    //字符串集合转换为json数组 为空时返回null
+    private static String toJsonArray(List<String> values) {
+        if (values == null || values.isEmpty()) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder("[");
+        for (String value : values) {
+            if (sb.length() > 1) {
+                sb.append(',');
+            }
+            QueryTemplate.writeString(sb, value);
+        }
+        return sb.append(']').toString();
+    }
+
+    private static Search newSearch(EsSearchParams params, String query) {
+        return new Search.Builder(query)
                 .addIndex(params.getIndex())
-                .addType(params.getType());
-        String sortFieldName = params.getSortFieldName();
-        if (!checkIsEmpty(sortFieldName)) {
-            builder.addSort(new Sort(sortFieldName, params.getSortMode()));
+                .addType(params.getType())
+                .build();
+    }
+
+    //与Jest的Sort格式一致 {"field":{"order":"asc"}}
+    private static void appendSort(StringBuilder sort, String fieldName, Sort.Sorting sorting) {
+        if (sort.length() > 0) {
+            sort.append(',');
         }
-        Search search = builder.build();
+        sort.append('{');
+        QueryTemplate.writeString(sort, fieldName);
+        sort.append(":{\"order\":\"").append(sorting == Sort.Sorting.DESC ? "desc" : "asc").append("\"}}");
+    }
+
+    //由最后一条hit的排序值生成游标 没有数据时返回null
+    private static String createCursor(SearchResult result) {
+        JsonObject jsonObject = result.getJsonObject();
+        if (jsonObject == null || !jsonObject.has("hits")) {
+            return null;
+        }
+        JsonArray hits = jsonObject.getAsJsonObject("hits").getAsJsonArray("hits");
+        if (hits == null || hits.size() == 0) {
+            return null;
+        }
+        JsonElement sort = hits.get(hits.size() - 1).getAsJsonObject().get("sort");
+        if (sort == null || !sort.isJsonArray()) {
+            return null;
+        }
+        return encodeCursor(sort.toString());
+    }
+
+    //sort值的原始json编码为游标
+    private static String encodeCursor(String sortJson) {
+        if (sortJson == null || !sortJson.startsWith("[")) {
+            return null;
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(sortJson.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 校验composite聚合的after_key
+     * afterKey可能来自外部保存的遍历位置，只接受值为基本类型的json对象，并重新序列化后再写入请求体
+     *
+     * @param afterKey
+     * @return afterKey为null时为null
+     * @throws IllegalArgumentException afterKey不是值为基本类型的json对象
+     */
+    static String normalizeAfterKey(String afterKey) {
+        if (afterKey == null) {
+            return null;
+        }
+        JsonElement key;
         try {
-            return jestClient.execute(search);
-        } catch (IOException e) {
-            //logger.d("ES读取异常");
-            //e.printStackTrace();
+            key = new JsonParser().parse(afterKey);
+        } catch (JsonParseException e) {
+            throw new IllegalArgumentException("无效的after_key: " + afterKey, e);
         }
-        return null;
+        if (!key.isJsonObject() || key.getAsJsonObject().size() == 0) {
+            throw new IllegalArgumentException("无效的after_key: " + afterKey);
+        }
+        for (Map.Entry<String, JsonElement> entry : key.getAsJsonObject().entrySet()) {
+            if (!entry.getValue().isJsonPrimitive() && !entry.getValue().isJsonNull()) {
+                throw new IllegalArgumentException("无效的after_key: " + afterKey);
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * 游标还原为search_after的json数组
+     * 游标可能来自外部请求，只接受由基本值组成的数组，并重新序列化后再写入请求体
+     *
+     * @param cursor
+     * @return
+     * @throws IllegalArgumentException 游标不是base64编码的基本值数组
+     */
+    private static String decodeCursor(String cursor) {
+        if (checkIsEmpty(cursor)) {
+            return null;
+        }
+        JsonElement values;
+        try {
+            values = new JsonParser().parse(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException | JsonParseException e) {
+            throw new IllegalArgumentException("无效的分页游标: " + cursor, e);
+        }
+        if (!values.isJsonArray() || values.getAsJsonArray().size() == 0) {
+            throw new IllegalArgumentException("无效的分页游标: " + cursor);
+        }
+        for (JsonElement value : values.getAsJsonArray()) {
+            if (!value.isJsonPrimitive()) {
+                throw new IllegalArgumentException("无效的分页游标: " + cursor);
+            }
+        }
+        return values.toString();
+    }
+
+    /**
+     * 向json对象字符串末尾追加一个字段
+     * 用于追加ES版本较新而SearchSourceBuilder不支持的参数
+     *
+     * @param json     json对象字符串
+     * @param name     字段名
+     * @param rawValue 已经是json格式的字段值
+     * @return
+     */
+    static String appendJsonField(String json, String name, String rawValue) {
+        int end = json.lastIndexOf('}');
+        String head = json.substring(0, end).trim();
+        StringBuilder sb = new StringBuilder(json.length() + name.length() + rawValue.length() + 8);
+        sb.append(head);
+        if (!head.endsWith("{")) {
+            sb.append(',');
+        }
+        sb.append('"').append(name).append("\":").append(rawValue).append('}');
+        return sb.toString();
     }
 
     //判断参数值是否为空、空字符串或者全空格
@@ -447,34 +1815,180 @@ public class ESUtils {
     }
 
     /**
-     * 查找特定字段，设置默认值
+     * 一次请求获取所有极值字段的值并转换为term查询 目前只支持long类型
+     * 每个字段对应一个max/min聚合，结果按过滤条件指纹缓存
+     *
+     * @param jestClient
+     * @param index
+     * @param type
+     * @param extremeFieldMap 字段名 -> 是否取最大值
+     * @param queryBuilders   基础过滤条件
+     * @return
+     */
+    public static List<QueryBuilder> createExtremeQueryBuilders(JestClient jestClient, String index, String type, Map<String, Boolean> extremeFieldMap, QueryBuilder... queryBuilders) {
+        if (extremeFieldMap == null || extremeFieldMap.size() == 0) {
+            return new ArrayList<>();
+        }
+        String query = buildExtremeQuery(QueryTemplate.directBinder(), extremeFieldMap, queryBuilders);
+        return toExtremeQueryBuilders(searchExtremeValues(jestClient, index, type, extremeFieldMap, query));
+    }
+
+    /**
+     * 异步获取极值查询 命中缓存时直接返回
      *
-     * @param object
-     * @param value
-     * @throws NoSuchFieldException
-     * @throws IllegalAccessException
+     * @param jestClient
+     * @param index
+     * @param type
+     * @param extremeFieldMap 字段名 -> 是否取最大值
+     * @param queryBuilders   基础过滤条件
+     * @return
      */
-    private static void setDefaultValue(Object object, String fieldName, Object value) {
-        Field field = null;
+    public static CompletableFuture<List<QueryBuilder>> createExtremeQueryBuildersAsync(JestClient jestClient, String index, String type, Map<String, Boolean> extremeFieldMap, QueryBuilder... queryBuilders) {
+        if (extremeFieldMap == null || extremeFieldMap.size() == 0) {
+            return CompletableFuture.completedFuture(new ArrayList<>());
+        }
+        String query = buildExtremeQuery(QueryTemplate.directBinder(), extremeFieldMap, queryBuilders);
+        return searchExtremeValuesAsync(jestClient, index, type, extremeFieldMap, query).thenApply(ESUtils::toExtremeQueryBuilders);
+    }
+
+    //每个极值字段一个max/min聚合 queryBuilders中的值已绑定到binder
+    private static String buildExtremeQuery(QueryTemplate.Binder binder, Map<String, Boolean> extremeFieldMap, QueryBuilder... queryBuilders) {
+        StringBuilder shape = new StringBuilder("extreme");
+        for (Map.Entry<String, Boolean> entry : extremeFieldMap.entrySet()) {
+            shape.append(':').append(entry.getKey()).append('=').append(Boolean.TRUE.equals(entry.getValue()));
+        }
+        return binder.render(shape.toString(), () -> {
+            SearchSourceBuilder ssb = new SearchSourceBuilder();
+            if (queryBuilders != null && queryBuilders.length > 0) {
+                //聚合不需要评分 全部条件放在filter中
+                BoolQueryBuilder bqb = QueryBuilders.boolQuery();
+                for (QueryBuilder tqb : queryBuilders) {
+                    bqb.filter(tqb);
+                }
+                ssb.query(bqb);
+            }
+            for (Map.Entry<String, Boolean> entry : extremeFieldMap.entrySet()) {
+                String fieldName = entry.getKey();
+                if (Boolean.TRUE.equals(entry.getValue())) {
+                    ssb.aggregation(AggregationBuilders.max(extremeAggName(fieldName, true)).field(fieldName));
+                } else {
+                    ssb.aggregation(AggregationBuilders.min(extremeAggName(fieldName, false)).field(fieldName));
+                }
+            }
+            ssb.size(0);
+            return ssb.toString();
+        });
+    }
+
+    //执行极值聚合请求 结果按请求体缓存 请求失败返回null
+    private static Map<String, Long> searchExtremeValues(JestClient jestClient, String index, String type, Map<String, Boolean> extremeFieldMap, String query) {
+        Cache<String, Map<String, Long>> cache = extremeCache;
+        String cacheKey = index + "/" + type + "\n" + query;
+        Map<String, Long> extremeValues = cache == null ? null : cache.getIfPresent(cacheKey);
+        if (extremeValues != null) {
+            return extremeValues;
+        }
+        Search search = new Search.Builder(query)
+                .addIndex(index)
+                .addType(type)
+                .build();
         try {
-            field = object.getClass().getDeclaredField(fieldName);
-            if (field != null) {
-                field.setAccessible(true);
-                field.set(object, value);//设置默认值
-                field.setAccessible(false);
+            long start = EsMetrics.start();
+            SearchResult result = jestClient.execute(search);
+            EsMetrics.lap(EsMetrics.OP_EXTREME, index, type, EsMetrics.HTTP, start);
+            EsMetrics.response(EsMetrics.OP_EXTREME, index, type, query, result);
+            extremeValues = parseExtremeValues(result, extremeFieldMap);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (extremeValues != null && cache != null) {
+            cache.put(cacheKey, extremeValues);
+        }
+        return extremeValues;
+    }
+
+    private static CompletableFuture<Map<String, Long>> searchExtremeValuesAsync(JestClient jestClient, String index, String type, Map<String, Boolean> extremeFieldMap, String query) {
+        Cache<String, Map<String, Long>> cache = extremeCache;
+        String cacheKey = index + "/" + type + "\n" + query;
+        Map<String, Long> cached = cache == null ? null : cache.getIfPresent(cacheKey);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        Search search = new Search.Builder(query)
+                .addIndex(index)
+                .addType(type)
+                .build();
+        long start = EsMetrics.start();
+        return JestAsync.execute(jestClient, search).handle((result, throwable) -> {
+            EsMetrics.lap(EsMetrics.OP_EXTREME, index, type, EsMetrics.HTTP, start);
+            EsMetrics.response(EsMetrics.OP_EXTREME, index, type, query, result);
+            Map<String, Long> extremeValues = throwable == null ? parseExtremeValues(result, extremeFieldMap) : null;
+            if (extremeValues != null && cache != null) {
+                cache.put(cacheKey, extremeValues);
+            }
+            return extremeValues;
+        });
+    }
+
+    //解析极值聚合结果 请求失败返回null
+    private static Map<String, Long> parseExtremeValues(SearchResult result, Map<String, Boolean> extremeFieldMap) {
+        if (result == null || !result.isSucceeded() || result.getAggregations() == null) {
+            return null;
+        }
+        Map<String, Long> extremeValues = new LinkedHashMap<>();
+        for (Map.Entry<String, Boolean> entry : extremeFieldMap.entrySet()) {
+            String fieldName = entry.getKey();
+            boolean isMax = Boolean.TRUE.equals(entry.getValue());
+            Double value;
+            if (isMax) {
+                MaxAggregation maxAggregation = result.getAggregations().getMaxAggregation(extremeAggName(fieldName, true));
+                value = maxAggregation == null ? null : maxAggregation.getMax();
+            } else {
+                MinAggregation minAggregation = result.getAggregations().getMinAggregation(extremeAggName(fieldName, false));
+                value = minAggregation == null ? null : minAggregation.getMin();
             }
-        } catch (NoSuchFieldException e) {
-//            e.printStackTrace();
-        } catch (IllegalAccessException e) {
-//            e.printStackTrace();
+            extremeValues.put(fieldName, value == null ? null : Long.valueOf(new BigDecimal(value).toPlainString()));
         }
+        return extremeValues;
+    }
+
+    private static List<QueryBuilder> toExtremeQueryBuilders(Map<String, Long> extremeValues) {
+        List<QueryBuilder> extremeQueryBuilders = new ArrayList<>();
+        if (extremeValues == null) {
+            return extremeQueryBuilders;
+        }
+        for (Map.Entry<String, Long> entry : extremeValues.entrySet()) {
+            if (entry.getValue() != null) {
+                extremeQueryBuilders.add(QueryBuilders.termQuery(entry.getKey(), entry.getValue()));
+            }
+        }
+        return extremeQueryBuilders;
+    }
+
+    //把极值条件加入查询 值绑定到binder
+    private static void addExtremeQueryBuilders(BoolQueryBuilder bqb, Map<String, Long> extremeValues, QueryTemplate.Binder binder, boolean scoring) {
+        if (extremeValues == null) {
+            return;
+        }
+        for (Map.Entry<String, Long> entry : extremeValues.entrySet()) {
+            if (entry.getValue() != null) {
+                addNonScoring(bqb, QueryBuilders.termQuery(entry.getKey(), binder.bind("extreme", entry.getKey(), entry.getValue())), scoring);
+            }
+        }
+    }
 
+    private static String extremeAggName(String fieldName, boolean isMax) {
+        return (isMax ? "extreme_max_" : "extreme_min_") + fieldName;
     }
 
     public <T> void save(JestClient jestClient, T entity, String index, String type) throws IOException {
         Index _index = new Index.Builder(entity).index(index).type(type).build();
 
-        jestClient.execute(_index);
+        long start = EsMetrics.start();
+        DocumentResult result = jestClient.execute(_index);
+        EsMetrics.lap(EsMetrics.OP_SAVE, index, type, EsMetrics.HTTP, start);
+        EsMetrics.response(EsMetrics.OP_SAVE, index, type, null, result);
+        SearchResultCache.invalidate(index, type);
     }
 
     /**
@@ -492,10 +2006,53 @@ public class ESUtils {
         Index _index = new Index.Builder(entity).index(index).type(type).id(id).build();
 
         try {
-            jestClient.execute(_index);
+            long start = EsMetrics.start();
+            DocumentResult result = jestClient.execute(_index);
+            EsMetrics.lap(EsMetrics.OP_UPDATE, index, type, EsMetrics.HTTP, start);
+            EsMetrics.response(EsMetrics.OP_UPDATE, index, type, null, result);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //logger.d("更新失败");
+        } finally {
+            SearchResultCache.invalidate(index, type);
+        }
+    }
+
+    /**
+     * 局部更新一条记录 只发送变化的字段
+     *
+     * @param jestClient
+     * @param index
+     * @param type
+     * @param id
+     * @param fields     字段名 -> 新值
+     * @return 是否更新成功
+     */
+    public static boolean updateFields(JestClient jestClient, String index, String type, String id, Map<String, ?> fields) {
+        return partialUpdate(jestClient, PartialUpdate.get(index, type, id).setDoc(fields));
+    }
+
+    /**
+     * 局部更新或upsert一条记录
+     *
+     * @param jestClient
+     * @param update
+     * @return 是否更新成功 文档不存在且没有upsert时为false
+     */
+    public static boolean partialUpdate(JestClient jestClient, PartialUpdate update) {
+        String body = update.toJson(getGson(jestClient));
+        try {
+            long start = EsMetrics.start();
+            DocumentResult result = jestClient.execute(update.build(body));
+            EsMetrics.lap(EsMetrics.OP_UPDATE, update.getIndex(), update.getType(), EsMetrics.HTTP, start);
+            EsMetrics.response(EsMetrics.OP_UPDATE, update.getIndex(), update.getType(), body, result);
+            return result.isSucceeded();
         } catch (IOException e) {
             e.printStackTrace();
             //logger.d("更新失败");
+        } finally {
+            SearchResultCache.invalidate(update.getIndex(), update.getType());
         }
+        return false;
     }
 }
@@ -0,0 +1,126 @@
+package com.chris.es.jest.utils;
+
+import com.chris.es.jest.model.EsId;
+import io.searchbox.annotations.JestId;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * Created by Chris Chen
+ * 2018/12/12
+ * Explain: 把文档_id写入实体
+ * 每个类只解析一次id字段，结果(包括没有id字段的情况)按类缓存
+ * 字段查找顺序: @EsId、名为id的字段、@JestId，依次从子类向父类查找
+ */
+
+public class EsIdBinder {
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+    //没有id字段的类
+    private static final IdSetter NONE = new IdSetter(null, null);
+    private static final ConcurrentMap<Class<?>, IdSetter> SETTERS = new ConcurrentHashMap<>();
+
+    /**
+     * 把id写入实体 实体没有id字段或者id无法转换为字段类型时忽略
+     *
+     * @param entity
+     * @param id
+     */
+    public static void bind(Object entity, String id) {
+        if (entity == null || id == null) {
+            return;
+        }
+        IdSetter setter = SETTERS.get(entity.getClass());
+        if (setter == null) {
+            setter = SETTERS.computeIfAbsent(entity.getClass(), EsIdBinder::resolve);
+        }
+        if (setter != NONE) {
+            setter.set(entity, id);
+        }
+    }
+
+    private static IdSetter resolve(Class<?> clazz) {
+        Field field = findField(clazz);
+        if (field == null) {
+            return NONE;
+        }
+        Function<String, Object> converter = converterOf(field.getType());
+        if (converter == null) {
+            return NONE;
+        }
+        try {
+            field.setAccessible(true);
+            MethodHandle handle = MethodHandles.lookup().unreflectSetter(field).asType(SETTER_TYPE);
+            return new IdSetter(handle, converter);
+        } catch (IllegalAccessException | RuntimeException e) {
+            return NONE;
+        }
+    }
+
+    private static Field findField(Class<?> clazz) {
+        Field named = null;
+        Field jestId = null;
+        for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isFinal(modifiers)) {
+                    continue;
+                }
+                if (field.isAnnotationPresent(EsId.class)) {
+                    return field;
+                }
+                if (jestId == null && field.isAnnotationPresent(JestId.class)) {
+                    jestId = field;
+                }
+                if (named == null && "id".equals(field.getName())) {
+                    named = field;
+                }
+            }
+        }
+        return named != null ? named : jestId;
+    }
+
+    //_id在ES中是字符串，按字段类型转换
+    private static Function<String, Object> converterOf(Class<?> type) {
+        if (type == String.class || type == Object.class || type == CharSequence.class) {
+            return id -> id;
+        }
+        if (type == Long.class || type == long.class) {
+            return Long::valueOf;
+        }
+        if (type == Integer.class || type == int.class) {
+            return Integer::valueOf;
+        }
+        return null;
+    }
+
+    private static class IdSetter {
+        private final MethodHandle handle;
+        private final Function<String, Object> converter;
+
+        IdSetter(MethodHandle handle, Function<String, Object> converter) {
+            this.handle = handle;
+            this.converter = converter;
+        }
+
+        void set(Object entity, String id) {
+            Object value;
+            try {
+                value = converter.apply(id);
+            } catch (NumberFormatException e) {
+                return;
+            }
+            try {
+                handle.invokeExact(entity, value);
+            } catch (Throwable throwable) {
+                //与原有行为一致 写入失败时忽略
+            }
+        }
+    }
+}
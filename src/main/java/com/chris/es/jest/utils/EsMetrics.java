@@ -0,0 +1,153 @@
+package com.chris.es.jest.utils;
+
+import io.searchbox.client.JestResult;
+
+/**
+ * Created by Chris Chen
+ * 2018/12/21
+ * Explain: ESUtils、JestProcessor等调用的耗时和数据量统计
+ * 未设置registry时start返回0，其余方法直接返回，不调用System.nanoTime
+ * 用法:
+ * long start = EsMetrics.start();
+ * ...构建查询
+ * start = EsMetrics.lap(EsMetrics.OP_SEARCH, index, type, EsMetrics.BUILD, start);
+ */
+
+public class EsMetrics {
+    //操作
+    public static final String OP_SEARCH = "search";
+    public static final String OP_EXTREME = "extreme";//极值聚合
+    public static final String OP_COUNT = "count";
+    public static final String OP_EXISTS = "exists";
+    public static final String OP_GET = "get";
+    public static final String OP_AGGREGATE = "aggregate";
+    public static final String OP_SAVE = "save";
+    public static final String OP_UPDATE = "update";
+    public static final String OP_BULK = "bulk";
+    public static final String OP_UPDATE_BY_QUERY = "update_by_query";
+    public static final String OP_DELETE_BY_QUERY = "delete_by_query";
+    //阶段
+    public static final String BUILD = "build";//构建查询条件
+    public static final String SERIALIZE = "serialize";//生成请求体
+    public static final String HTTP = "http";//请求ES
+    public static final String CONVERT = "convert";//解析hit为实体
+    //数值
+    public static final String HITS = "hits";//返回的hit条数
+    public static final String REQUEST_BYTES = "request_bytes";
+    public static final String RESPONSE_BYTES = "response_bytes";
+    public static final String TOOK = "took";//ES返回的耗时(毫秒)
+    public static final String ITEMS = "items";//批量请求的记录数
+    public static final String FAILED = "failed";//失败的记录数
+    public static final String DROPPED = "dropped";//写缓冲已满被丢弃的记录数
+
+    private static volatile MetricsRegistry registry;
+
+    public static MetricsRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * 设置指标记录实现
+     *
+     * @param registry 为null时关闭统计
+     */
+    public static void setRegistry(MetricsRegistry registry) {
+        EsMetrics.registry = registry;
+    }
+
+    public static boolean isEnabled() {
+        return registry != null;
+    }
+
+    /**
+     * 开始计时
+     *
+     * @return 未开启统计时返回0
+     */
+    public static long start() {
+        return registry == null ? 0 : System.nanoTime();
+    }
+
+    /**
+     * 记录从start到现在的耗时
+     *
+     * @param operation
+     * @param index
+     * @param type
+     * @param stage
+     * @param start     start或上一次lap的返回值
+     * @return 下一阶段的开始时间
+     */
+    public static long lap(String operation, String index, String type, String stage, long start) {
+        MetricsRegistry current = registry;
+        if (current == null || start == 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        current.recordTime(operation, index, type, stage, now - start);
+        return now;
+    }
+
+    public static void value(String operation, String index, String type, String metric, long value) {
+        MetricsRegistry current = registry;
+        if (current != null) {
+            current.recordValue(operation, index, type, metric, value);
+        }
+    }
+
+    /**
+     * 记录请求和响应的字节数以及ES返回的took
+     *
+     * @param operation
+     * @param index
+     * @param type
+     * @param requestBody
+     * @param result
+     */
+    public static void response(String operation, String index, String type, String requestBody, JestResult result) {
+        MetricsRegistry current = registry;
+        if (current == null) {
+            return;
+        }
+        if (requestBody != null) {
+            current.recordValue(operation, index, type, REQUEST_BYTES, utf8Length(requestBody));
+        }
+        if (result == null) {
+            return;
+        }
+        String json = result.getJsonString();
+        if (json != null) {
+            current.recordValue(operation, index, type, RESPONSE_BYTES, utf8Length(json));
+        }
+        if (result.getJsonObject() != null && result.getJsonObject().has("took")) {
+            current.recordValue(operation, index, type, TOOK, result.getJsonObject().get("took").getAsLong());
+        }
+    }
+
+    /**
+     * 字符串按UTF-8编码的字节数 不生成字节数组
+     *
+     * @param str
+     * @return
+     */
+    public static int utf8Length(String str) {
+        int length = 0;
+        for (int i = 0, n = str.length(); i < n; i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(str.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                //不成对的代理字符编码为?
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
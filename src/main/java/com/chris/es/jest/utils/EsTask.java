@@ -0,0 +1,218 @@
+package com.chris.es.jest.utils;
+
+import com.chris.es.jest.model.ByQueryResult;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.cluster.TasksInformation;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Created by Chris Chen
+ * 2018/12/28
+ * Explain: ES后台任务(update_by_query/delete_by_query)
+ * 通过_tasks接口查询进度，任务完成时清除对应index/type的搜索结果缓存
+ * 由ESUtils提交的任务在后台异步轮询，没有调用getStatus/await时也会在完成后清除缓存
+ */
+
+public class EsTask {
+    public static final long DEFAULT_POLL_INTERVAL = 1000;
+    private static final long MAX_WATCH_INTERVAL = 60000;
+
+    private final JestClient jestClient;
+    private final String taskId;
+    private final String index;
+    private final String type;
+    private final boolean watched;//提交时标记了SearchResultCache.taskStarted，结束时需要taskEnded
+    private final AtomicBoolean ended = new AtomicBoolean();
+    private volatile long pollInterval = DEFAULT_POLL_INTERVAL;
+
+    /**
+     * @param jestClient
+     * @param taskId     如 node:123
+     * @param index      任务完成时清除该index/type的缓存 可以为null
+     * @param type
+     */
+    public EsTask(JestClient jestClient, String taskId, String index, String type) {
+        this(jestClient, taskId, index, type, false);
+    }
+
+    private EsTask(JestClient jestClient, String taskId, String index, String type, boolean watched) {
+        this.jestClient = jestClient;
+        this.taskId = taskId;
+        this.index = index;
+        this.type = type;
+        this.watched = watched;
+    }
+
+    /**
+     * 在后台轮询已提交的任务 调用前已执行SearchResultCache.taskStarted
+     * 任务完成或查询不到时执行taskEnded，期间该index/type的搜索不使用缓存
+     *
+     * @param jestClient
+     * @param taskId
+     * @param index
+     * @param type
+     * @return
+     */
+    static EsTask watch(JestClient jestClient, String taskId, String index, String type) {
+        EsTask task = new EsTask(jestClient, taskId, index, type, true);
+        task.watch(task.pollInterval);
+        return task;
+    }
+
+    public String getTaskId() {
+        return taskId;
+    }
+
+    /**
+     * 设置await和后台轮询的间隔
+     *
+     * @param pollInterval 毫秒
+     * @return
+     */
+    public EsTask setPollInterval(long pollInterval) {
+        if (pollInterval > 0) {
+            this.pollInterval = pollInterval;
+        }
+        return this;
+    }
+
+    /**
+     * 查询一次任务进度
+     *
+     * @return 请求失败时为null
+     */
+    public ByQueryResult getStatus() {
+        try {
+            JestResult result = jestClient.execute(new TasksInformation.Builder().task(taskId).build());
+            if (!result.isSucceeded()) {
+                return null;
+            }
+            ByQueryResult status = parse(taskId, result.getJsonObject());
+            if (status.isCompleted()) {
+                end();
+            }
+            return status;
+        } catch (IOException e) {
+            //logger.d("ES读取异常");
+        }
+        return null;
+    }
+
+    /**
+     * 轮询直到任务完成或超时
+     *
+     * @param timeout
+     * @param unit
+     * @return 最后一次查询到的进度 超时时isCompleted为false；一直无法查询时为null
+     * @throws InterruptedException
+     */
+    public ByQueryResult await(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        ByQueryResult status = null;
+        while (true) {
+            ByQueryResult current = getStatus();
+            if (current != null) {
+                status = current;
+                if (status.isCompleted()) {
+                    return status;
+                }
+            }
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return status;
+            }
+            Thread.sleep(Math.min(pollInterval, remaining));
+        }
+    }
+
+    //异步轮询直到任务结束 等待期间不占用线程
+    private void watch(long interval) {
+        JestAsync.delay(interval)
+                .thenCompose(v -> JestAsync.execute(jestClient, new TasksInformation.Builder().task(taskId).build()))
+                .whenComplete((result, throwable) -> {
+                    if (ended.get()) {
+                        return;
+                    }
+                    if (throwable != null || result.getResponseCode() == 429 || result.getResponseCode() >= 500) {
+                        //网络异常或节点繁忙 退避后继续
+                        watch(Math.min(interval * 2, MAX_WATCH_INTERVAL));
+                        return;
+                    }
+                    boolean completed;
+                    try {
+                        //ES 2.x不保留已完成的任务，查询不到即视为结束
+                        completed = !result.isSucceeded() || parse(taskId, result.getJsonObject()).isCompleted();
+                    } catch (RuntimeException e) {
+                        completed = true;
+                    }
+                    if (completed) {
+                        end();
+                    } else {
+                        watch(pollInterval);
+                    }
+                });
+    }
+
+    //任务结束 清除缓存
+    private void end() {
+        if (!ended.compareAndSet(false, true)) {
+            return;
+        }
+        if (watched) {
+            SearchResultCache.taskEnded(index, type);
+        } else if (index != null) {
+            SearchResultCache.invalidate(index, type);
+        }
+    }
+
+    /**
+     * 解析任务信息 完成后取response中的结果，未完成时取task.status中的进度
+     * 提交时wait_for_completion为true的同步响应也可以直接解析
+     *
+     * @param taskId
+     * @param json
+     * @return
+     */
+    static ByQueryResult parse(String taskId, JsonObject json) {
+        ByQueryResult result = new ByQueryResult(taskId);
+        JsonObject counts = json;
+        if (json.has("completed")) {
+            result.setCompleted(json.get("completed").getAsBoolean());
+            if (json.has("response")) {
+                counts = json.getAsJsonObject("response");
+            } else if (json.has("task") && json.getAsJsonObject("task").has("status")) {
+                counts = json.getAsJsonObject("task").getAsJsonObject("status");
+            }
+        } else {
+            result.setCompleted(true);
+        }
+        result.setTotal(getLong(counts, "total"))
+                .setUpdated(getLong(counts, "updated"))
+                .setCreated(getLong(counts, "created"))
+                .setDeleted(getLong(counts, "deleted"))
+                .setBatches(getLong(counts, "batches"))
+                .setVersionConflicts(getLong(counts, "version_conflicts"))
+                .setNoops(getLong(counts, "noops"))
+                .setTook(getLong(counts, "took"));
+        if (counts.has("failures") && counts.get("failures").isJsonArray()) {
+            result.setFailures(counts.getAsJsonArray("failures").size());
+        }
+        JsonElement error = json.get("error");
+        if (error != null && !error.isJsonNull()) {
+            result.setError(error.isJsonObject() && error.getAsJsonObject().has("reason")
+                    ? error.getAsJsonObject().get("reason").getAsString() : error.toString());
+        }
+        return result;
+    }
+
+    private static long getLong(JsonObject json, String name) {
+        JsonElement element = json.get(name);
+        return element == null || element.isJsonNull() ? 0 : element.getAsLong();
+    }
+}
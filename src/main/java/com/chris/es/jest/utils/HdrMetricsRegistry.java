@@ -0,0 +1,101 @@
+package com.chris.es.jest.utils;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by Chris Chen
+ * 2018/12/21
+ * Explain: 基于HdrHistogram的指标记录
+ * 每个操作、index/type、阶段(指标)一个直方图，耗时以微秒记录
+ * key格式: operation/index/type/stage
+ */
+
+public class HdrMetricsRegistry implements MetricsRegistry {
+    private static final int SIGNIFICANT_DIGITS = 2;
+
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    public static HdrMetricsRegistry get() {
+        return new HdrMetricsRegistry();
+    }
+
+    @Override
+    public void recordTime(String operation, String index, String type, String stage, long nanos) {
+        histogram(operation, index, type, stage).recordValue(Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos)));
+    }
+
+    @Override
+    public void recordValue(String operation, String index, String type, String metric, long value) {
+        histogram(operation, index, type, metric).recordValue(Math.max(0, value));
+    }
+
+    private Histogram histogram(String operation, String index, String type, String stage) {
+        String key = key(operation, index, type, stage);
+        Histogram histogram = histograms.get(key);
+        if (histogram == null) {
+            histogram = histograms.computeIfAbsent(key, k -> {
+                ConcurrentHistogram created = new ConcurrentHistogram(SIGNIFICANT_DIGITS);
+                created.setAutoResize(true);
+                return created;
+            });
+        }
+        return histogram;
+    }
+
+    private static String key(String operation, String index, String type, String stage) {
+        return operation + "/" + index + "/" + type + "/" + stage;
+    }
+
+    /**
+     * 获取直方图副本
+     *
+     * @param operation
+     * @param index
+     * @param type
+     * @param stage
+     * @return 没有记录时为null
+     */
+    public Histogram getHistogram(String operation, String index, String type, String stage) {
+        Histogram histogram = histograms.get(key(operation, index, type, stage));
+        return histogram == null ? null : histogram.copy();
+    }
+
+    /**
+     * 所有直方图的副本 按key排序
+     *
+     * @return
+     */
+    public Map<String, Histogram> snapshot() {
+        Map<String, Histogram> snapshot = new TreeMap<>();
+        histograms.forEach((key, histogram) -> snapshot.put(key, histogram.copy()));
+        return snapshot;
+    }
+
+    /**
+     * 每个直方图的次数、平均值、p50/p99/最大值 用于日志输出
+     *
+     * @return
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        snapshot().forEach((key, histogram) -> sb.append(key)
+                .append(" count=").append(histogram.getTotalCount())
+                .append(" mean=").append(String.format("%.1f", histogram.getMean()))
+                .append(" p50=").append(histogram.getValueAtPercentile(50))
+                .append(" p99=").append(histogram.getValueAtPercentile(99))
+                .append(" max=").append(histogram.getMaxValue())
+                .append('\n'));
+        return sb.toString();
+    }
+
+    public void reset() {
+        histograms.values().forEach(Histogram::reset);
+    }
+}
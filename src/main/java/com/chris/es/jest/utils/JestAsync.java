@@ -0,0 +1,214 @@
+package com.chris.es.jest.utils;
+
+import io.searchbox.action.Action;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.client.JestResultHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Created by Chris Chen
+ * 2018/12/10
+ * Explain: 基于JestClient.executeAsync的异步执行
+ * 请求由http异步客户端的IO线程回调，不占用调用线程；future在executor中完成，后续的转换不占用IO线程
+ * 进行中的请求数超过上限时排队等待，排队和执行的总时间超过超时时间后future以TimeoutException结束
+ * 异步重试的退避通过delay在定时线程上调度，等待期间不占用线程
+ */
+
+public class JestAsync {
+    private static volatile int maxInFlight = 256;
+    private static volatile long timeoutMillis = 30000;
+
+    private static final AtomicInteger inFlight = new AtomicInteger();
+    private static final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "jest-async-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static volatile Executor executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "jest-async-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * 设置执行阻塞组合操作的线程池
+     *
+     * @param executor 为null时不修改
+     */
+    public static void setExecutor(Executor executor) {
+        if (executor != null) {
+            JestAsync.executor = executor;
+        }
+    }
+
+    public static int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * 设置同时进行中的异步请求上限
+     *
+     * @param maxInFlight
+     */
+    public static void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight > 0) {
+            JestAsync.maxInFlight = maxInFlight;
+            dispatch();
+        }
+    }
+
+    public static long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * 设置异步请求超时时间
+     *
+     * @param timeoutMillis 毫秒 小于等于0时不超时
+     */
+    public static void setTimeoutMillis(long timeoutMillis) {
+        JestAsync.timeoutMillis = timeoutMillis;
+    }
+
+    public static int getInFlight() {
+        return inFlight.get();
+    }
+
+    public static int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * 异步执行一个请求
+     *
+     * @param jestClient
+     * @param action
+     * @param <R>
+     * @return
+     */
+    public static <R extends JestResult> CompletableFuture<R> execute(JestClient jestClient, Action<R> action) {
+        CompletableFuture<R> future = new CompletableFuture<>();
+        long timeout = timeoutMillis;
+        if (timeout > 0) {
+            ScheduledFuture<?> timeoutTask = timer.schedule(
+                    () -> complete(future, null, new TimeoutException("ES异步请求超时: " + timeout + "ms")),
+                    timeout, TimeUnit.MILLISECONDS);
+            future.whenComplete((result, throwable) -> timeoutTask.cancel(false));
+        }
+        pending.offer(() -> {
+            //排队期间已经超时
+            if (future.isDone()) {
+                release();
+                return;
+            }
+            try {
+                jestClient.executeAsync(action, new JestResultHandler<R>() {
+                    @Override
+                    public void completed(R result) {
+                        release();
+                        complete(future, result, null);
+                    }
+
+                    @Override
+                    public void failed(Exception e) {
+                        release();
+                        complete(future, null, e);
+                    }
+                });
+            } catch (RuntimeException e) {
+                release();
+                future.completeExceptionally(e);
+            }
+        });
+        dispatch();
+        return future;
+    }
+
+    /**
+     * 延迟后在executor中完成的future 用于异步重试的退避
+     *
+     * @param millis
+     * @return
+     */
+    public static CompletableFuture<Void> delay(long millis) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        timer.schedule(() -> complete(future, null, null), Math.max(0, millis), TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    /**
+     * 等待全部完成后按顺序取得结果
+     *
+     * @param futures
+     * @param <T>
+     * @return 任一失败时以该异常结束
+     */
+    public static <T> CompletableFuture<List<T>> allOf(List<CompletableFuture<T>> futures) {
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            List<T> results = new ArrayList<>(futures.size());
+            for (CompletableFuture<T> future : futures) {
+                results.add(future.join());
+            }
+            return results;
+        });
+    }
+
+    //在executor中完成future 避免thenApply等后续操作占用IO线程或超时线程；executor拒绝时在当前线程完成
+    private static <R> void complete(CompletableFuture<R> future, R result, Throwable error) {
+        Runnable task = () -> {
+            if (error == null) {
+                future.complete(result);
+            } else {
+                future.completeExceptionally(error);
+            }
+        };
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    private static void release() {
+        inFlight.decrementAndGet();
+        dispatch();
+    }
+
+    //在不超过上限的前提下发出排队中的请求
+    private static void dispatch() {
+        while (!pending.isEmpty()) {
+            int current = inFlight.get();
+            if (current >= maxInFlight) {
+                return;
+            }
+            if (!inFlight.compareAndSet(current, current + 1)) {
+                continue;
+            }
+            Runnable task = pending.poll();
+            if (task == null) {
+                inFlight.decrementAndGet();
+                continue;
+            }
+            task.run();
+        }
+    }
+}
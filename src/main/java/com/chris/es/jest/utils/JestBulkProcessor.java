@@ -0,0 +1,681 @@
+package com.chris.es.jest.utils;
+
+import com.chris.es.jest.model.WriteResult;
+import com.google.gson.Gson;
+import io.searchbox.action.AbstractAction;
+import io.searchbox.action.BulkableAction;
+import io.searchbox.client.JestClient;
+import io.searchbox.core.Bulk;
+import io.searchbox.core.BulkResult;
+import io.searchbox.core.Index;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Created by Chris Chen
+ * 2018/12/07
+ * Explain: 批量写入处理器
+ * 按条数、字节数或时间间隔自动切分为多个bulk请求，并限制同时进行中的请求数
+ * 解析每条记录的结果，只对被拒绝(429/503)的记录退避重试
+ * concurrentRequests为0时在调用线程中同步发送
+ */
+
+public class JestBulkProcessor implements Closeable {
+    //每条记录在bulk请求体中除文档本身以外的大致开销(action行)
+    private static final int ACTION_OVERHEAD_BYTES = 64;
+    public static final int DEFAULT_BULK_ACTIONS = 1000;
+
+    private final JestClient jestClient;
+    private final Gson gson;
+    private int bulkActions = DEFAULT_BULK_ACTIONS;
+    private long bulkSize = 5 * 1024 * 1024;
+    private int concurrentRequests = 1;
+    private int maxRetries = 3;
+    private long backoffMillis = 100;
+    private int maxFailedItems = Integer.MAX_VALUE;
+    private volatile Consumer<BulkResult.BulkResultItem> failureListener;
+
+    private final Object lock = new Object();
+    private List<BulkableAction<?>> buffer = new ArrayList<>();
+    private long bufferBytes;
+    private Semaphore semaphore;
+    private ExecutorService executor;
+    private ScheduledExecutorService scheduler;
+    private volatile boolean closed;
+
+    private final AtomicLong successCount = new AtomicLong();
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final List<BulkResult.BulkResultItem> failedItems = Collections.synchronizedList(new ArrayList<>());
+    //需要确认结果的记录 按请求对象本身区分
+    private final Map<BulkableAction<?>, CompletableFuture<WriteResult>> acks = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    public JestBulkProcessor(JestClient jestClient) {
+        this.jestClient = jestClient;
+        this.gson = ESUtils.getGson(jestClient);
+    }
+
+    public static JestBulkProcessor get(JestClient jestClient) {
+        return new JestBulkProcessor(jestClient);
+    }
+
+    /**
+     * 达到条数后发送
+     *
+     * @param bulkActions 小于等于0时不按条数切分
+     * @return
+     */
+    public JestBulkProcessor setBulkActions(int bulkActions) {
+        this.bulkActions = bulkActions;
+        return this;
+    }
+
+    public int getBulkActions() {
+        return bulkActions;
+    }
+
+    /**
+     * 达到请求体大小后发送
+     *
+     * @param bulkSize 字节数 小于等于0时不按大小切分
+     * @return
+     */
+    public JestBulkProcessor setBulkSize(long bulkSize) {
+        this.bulkSize = bulkSize;
+        return this;
+    }
+
+    /**
+     * 同时进行中的bulk请求数 超过时add阻塞等待
+     *
+     * @param concurrentRequests 0表示在调用线程中同步发送
+     * @return
+     */
+    public JestBulkProcessor setConcurrentRequests(int concurrentRequests) {
+        this.concurrentRequests = Math.max(0, concurrentRequests);
+        return this;
+    }
+
+    public JestBulkProcessor setMaxRetries(int maxRetries) {
+        this.maxRetries = Math.max(0, maxRetries);
+        return this;
+    }
+
+    /**
+     * 重试的初始退避时间 每次重试翻倍
+     *
+     * @param backoffMillis
+     * @return
+     */
+    public JestBulkProcessor setBackoffMillis(long backoffMillis) {
+        this.backoffMillis = Math.max(0, backoffMillis);
+        return this;
+    }
+
+    /**
+     * 最多保留的失败记录数 超过后只计数，不再保留
+     * 长期运行的处理器(如WriteBehindBuffer)需要设置上限或改用failureListener
+     *
+     * @param maxFailedItems 0表示不保留
+     * @return
+     */
+    public JestBulkProcessor setMaxFailedItems(int maxFailedItems) {
+        this.maxFailedItems = Math.max(0, maxFailedItems);
+        return this;
+    }
+
+    /**
+     * 每条最终失败的记录都会回调 在发送请求的线程中执行，不应阻塞
+     *
+     * @param failureListener
+     * @return
+     */
+    public JestBulkProcessor setFailureListener(Consumer<BulkResult.BulkResultItem> failureListener) {
+        this.failureListener = failureListener;
+        return this;
+    }
+
+    /**
+     * 定时发送 未达到条数和大小的数据也会在间隔后发出
+     *
+     * @param interval
+     * @param unit
+     * @return
+     */
+    public JestBulkProcessor setFlushInterval(long interval, TimeUnit unit) {
+        synchronized (lock) {
+            if (scheduler != null) {
+                scheduler.shutdown();
+            }
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "jest-bulk-flush");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::flush, interval, interval, unit);
+        }
+        return this;
+    }
+
+    /**
+     * 添加一个文档的保存请求
+     * 文档在此处序列化一次，用于计算大小，发送时不再重复序列化
+     *
+     * @param entity
+     * @param index
+     * @param type
+     */
+    public void addDocument(Object entity, String index, String type) {
+        addDocument(entity, index, type, null);
+    }
+
+    /**
+     * 添加一个文档的保存请求 写入成功或重试后仍然失败时完成ack
+     *
+     * @param entity
+     * @param index
+     * @param type
+     * @param ack    成功时为该记录的结果，失败时以IOException结束 可以为null
+     */
+    void addDocument(Object entity, String index, String type, CompletableFuture<WriteResult> ack) {
+        String source = gson.toJson(entity);
+        Index action = buildIndex(entity, source, index, type);
+        if (ack != null) {
+            acks.put(action, ack);
+        }
+        try {
+            add(action, source.length());
+        } catch (RuntimeException e) {
+            acks.remove(action);
+            throw e;
+        }
+    }
+
+    /**
+     * 生成文档的保存请求 文档在此处序列化一次
+     *
+     * @param entity
+     * @param index
+     * @param type
+     * @return
+     */
+    Index buildIndex(Object entity, String index, String type) {
+        return buildIndex(entity, gson.toJson(entity), index, type);
+    }
+
+    private static Index buildIndex(Object entity, String source, String index, String type) {
+        return new Index.Builder(source)
+                .index(index)
+                .type(type)
+                .id(AbstractAction.getIdFromSource(entity))
+                .build();
+    }
+
+    /**
+     * 异步发送一组请求 不经过缓冲区和工作线程，与add/flush/close互不影响
+     * 按条数和大小切分后通过{@link JestAsync#execute}发出，同时进行中的请求数由JestAsync的上限控制
+     * 被拒绝的记录通过{@link JestAsync#delay}退避后重试，等待期间不占用线程
+     *
+     * @param actions
+     * @return 所有记录成功或重试后仍然失败时完成 失败的记录见getFailedCount/getFailedItems
+     */
+    public CompletableFuture<Void> executeAsync(List<? extends BulkableAction<?>> actions) {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        List<BulkableAction<?>> batch = new ArrayList<>();
+        long batchBytes = 0;
+        for (BulkableAction<?> action : actions) {
+            String data = action.getData(gson);
+            batch.add(action);
+            batchBytes += (data == null ? 0 : data.length()) + ACTION_OVERHEAD_BYTES;
+            if ((bulkActions > 0 && batch.size() >= bulkActions) || (bulkSize > 0 && batchBytes >= bulkSize)) {
+                futures.add(executeBulkAsync(batch));
+                batch = new ArrayList<>();
+                batchBytes = 0;
+            }
+        }
+        if (!batch.isEmpty()) {
+            futures.add(executeBulkAsync(batch));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+    }
+
+    //异步发送一批请求，完成后清除涉及的index/type的搜索缓存
+    private CompletableFuture<Void> executeBulkAsync(List<BulkableAction<?>> actions) {
+        return executeBulkAsync(actions, 0, backoffMillis).whenComplete((ignored, throwable) -> invalidateCache(actions));
+    }
+
+    //与executeBulk一致 只重试被拒绝(429/503)的记录和网络异常
+    private CompletableFuture<Void> executeBulkAsync(List<BulkableAction<?>> pending, int count, long backoff) {
+        long start = EsMetrics.start();
+        CompletableFuture<BulkResult> request;
+        try {
+            request = JestAsync.execute(jestClient, new Bulk.Builder().addAction(pending).build());
+        } catch (RuntimeException e) {
+            request = new CompletableFuture<>();
+            request.completeExceptionally(e);
+        }
+        return request.handle((result, throwable) -> handleResponse(pending, result, toBulkError(throwable), start))
+                .thenCompose(attempt -> {
+                    if (!shouldRetry(attempt, count)) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    return JestAsync.delay(backoff).thenCompose(ignored -> executeBulkAsync(attempt.retry, count + 1, backoff * 2));
+                });
+    }
+
+    //异步请求的异常 超时与同步请求的读取超时一样按网络异常重试
+    private static Exception toBulkError(Throwable throwable) {
+        if (throwable == null) {
+            return null;
+        }
+        Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+        if (cause instanceof TimeoutException) {
+            return new IOException(cause.getMessage(), cause);
+        }
+        return cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+    }
+
+    /**
+     * 添加一个局部更新或upsert请求 请求体在此处生成一次
+     *
+     * @param update
+     */
+    public void addUpdate(PartialUpdate update) {
+        String body = update.toJson(gson);
+        add(update.build(body), body.length());
+    }
+
+    /**
+     * 添加任意可批量执行的请求
+     *
+     * @param action
+     */
+    public void add(BulkableAction<?> action) {
+        String data = action.getData(gson);
+        add(action, data == null ? 0 : data.length());
+    }
+
+    private void add(BulkableAction<?> action, long bytes) {
+        List<BulkableAction<?>> actions = null;
+        synchronized (lock) {
+            //与awaitClose在同一个锁内检查 关闭后取出的缓冲区不会再有新数据
+            if (closed) {
+                throw new IllegalStateException("bulk处理器已关闭");
+            }
+            buffer.add(action);
+            bufferBytes += bytes + ACTION_OVERHEAD_BYTES;
+            if ((bulkActions > 0 && buffer.size() >= bulkActions) || (bulkSize > 0 && bufferBytes >= bulkSize)) {
+                actions = takeBuffer();
+            }
+        }
+        if (actions != null) {
+            execute(actions);
+        }
+    }
+
+    /**
+     * 发送缓冲区中的数据 不等待请求完成
+     */
+    public void flush() {
+        List<BulkableAction<?>> actions;
+        synchronized (lock) {
+            actions = takeBuffer();
+        }
+        if (actions != null) {
+            execute(actions);
+        }
+    }
+
+    private List<BulkableAction<?>> takeBuffer() {
+        if (buffer.isEmpty()) {
+            return null;
+        }
+        List<BulkableAction<?>> actions = buffer;
+        buffer = new ArrayList<>();
+        bufferBytes = 0;
+        return actions;
+    }
+
+    private void execute(List<BulkableAction<?>> actions) {
+        if (concurrentRequests == 0) {
+            executeWithRetry(actions);
+            return;
+        }
+        Semaphore permits;
+        ExecutorService workers;
+        synchronized (lock) {
+            if (executor == null) {
+                semaphore = new Semaphore(concurrentRequests);
+                executor = Executors.newFixedThreadPool(concurrentRequests, runnable -> {
+                    Thread thread = new Thread(runnable, "jest-bulk");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            permits = semaphore;
+            workers = executor;
+        }
+        permits.acquireUninterruptibly();
+        try {
+            workers.execute(() -> {
+                try {
+                    executeWithRetry(actions);
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    //发送一批请求，完成后清除涉及的index/type的搜索缓存
+    private void executeWithRetry(List<BulkableAction<?>> actions) {
+        try {
+            executeBulk(actions);
+        } finally {
+            invalidateCache(actions);
+        }
+    }
+
+    private static void invalidateCache(List<BulkableAction<?>> actions) {
+        if (!SearchResultCache.isEnabled()) {
+            return;
+        }
+        Set<String> invalidated = new HashSet<>();
+        for (BulkableAction<?> action : actions) {
+            if (invalidated.add(action.getIndex() + "/" + action.getType())) {
+                SearchResultCache.invalidate(action.getIndex(), action.getType());
+            }
+        }
+    }
+
+    //发送一批请求，只重试被拒绝(429/503)的记录，其它错误立即失败
+    private void executeBulk(List<BulkableAction<?>> actions) {
+        List<BulkableAction<?>> pending = actions;
+        long backoff = backoffMillis;
+        for (int count = 0; ; count++) {
+            long start = EsMetrics.start();
+            BulkResult result = null;
+            Exception error = null;
+            try {
+                result = jestClient.execute(new Bulk.Builder().addAction(pending).build());
+            } catch (IOException | RuntimeException e) {
+                error = e;
+            }
+            Attempt attempt = handleResponse(pending, result, error, start);
+            if (!shouldRetry(attempt, count)) {
+                return;
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                //被中断时不再重试
+                Thread.currentThread().interrupt();
+                fail(attempt.retry, attempt.failed, attempt.status, "bulk重试被中断");
+                return;
+            }
+            backoff *= 2;
+            pending = attempt.retry;
+        }
+    }
+
+    /**
+     * 处理一次bulk请求的结果 成功和不可重试的记录在此确认
+     *
+     * @param pending 本次发送的请求
+     * @param result  请求异常时为null
+     * @param error   请求异常 IOException重试全部记录，其它异常(如响应无法解析)全部失败
+     * @param start   EsMetrics.start的返回值
+     * @return 需要重试的记录
+     */
+    private Attempt handleResponse(List<BulkableAction<?>> pending, BulkResult result, Exception error, long start) {
+        recordMetrics(pending, result, start);
+        Attempt attempt = new Attempt();
+        if (error instanceof IOException) {
+            //网络异常 全部重试
+            attempt.retry = pending;
+            attempt.error = error.getMessage();
+            return attempt;
+        }
+        List<BulkResult.BulkResultItem> items = null;
+        if (error == null) {
+            try {
+                items = result.getItems();
+            } catch (RuntimeException e) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            fail(pending, attempt.failed, 0, "bulk响应处理失败: " + error);
+            return attempt;
+        }
+        if (items == null || items.size() != pending.size()) {
+            //整个请求被拒绝 只有429/503重试，请求体错误(400/413等)重试也不会成功
+            attempt.status = result.getResponseCode();
+            attempt.error = result.getErrorMessage();
+            if (isRetryable(attempt.status)) {
+                attempt.retry = pending;
+            } else {
+                fail(pending, attempt.failed, attempt.status, attempt.error);
+            }
+            return attempt;
+        }
+        for (int i = 0; i < items.size(); i++) {
+            BulkResult.BulkResultItem item = items.get(i);
+            if (item.error == null && item.status < 300) {
+                successCount.incrementAndGet();
+                acknowledge(pending.get(i), item);
+            } else if (isRetryable(item.status)) {
+                attempt.retry.add(pending.get(i));
+                attempt.failed.add(item);
+            } else {
+                recordFailure(item);
+                acknowledge(pending.get(i), item);
+            }
+        }
+        return attempt;
+    }
+
+    //是否继续重试 超过重试次数时记录为失败
+    private boolean shouldRetry(Attempt attempt, int count) {
+        if (attempt.retry.isEmpty()) {
+            return false;
+        }
+        if (count >= maxRetries) {
+            fail(attempt.retry, attempt.failed, attempt.status, attempt.error);
+            return false;
+        }
+        retryCount.addAndGet(attempt.retry.size());
+        return true;
+    }
+
+    //一批请求中可能有多个index/type 按index/type分别记录耗时、条数和响应
+    private static void recordMetrics(List<BulkableAction<?>> pending, BulkResult result, long start) {
+        if (start == 0) {
+            return;
+        }
+        Map<List<String>, Integer> counts = new LinkedHashMap<>();
+        for (BulkableAction<?> action : pending) {
+            counts.merge(Arrays.asList(action.getIndex(), action.getType()), 1, Integer::sum);
+        }
+        for (Map.Entry<List<String>, Integer> entry : counts.entrySet()) {
+            String index = entry.getKey().get(0);
+            String type = entry.getKey().get(1);
+            EsMetrics.lap(EsMetrics.OP_BULK, index, type, EsMetrics.HTTP, start);
+            EsMetrics.value(EsMetrics.OP_BULK, index, type, EsMetrics.ITEMS, entry.getValue());
+            EsMetrics.response(EsMetrics.OP_BULK, index, type, null, result);
+        }
+    }
+
+    /**
+     * 记录最终失败的记录
+     *
+     * @param actions 失败的请求
+     * @param failed  与actions一一对应的结果 整个请求失败时为空
+     * @param status  整个请求失败时的http状态
+     * @param error   整个请求失败时的错误信息
+     */
+    private void fail(List<BulkableAction<?>> actions, List<BulkResult.BulkResultItem> failed, int status, String error) {
+        if (failed.isEmpty()) {
+            for (BulkableAction<?> action : actions) {
+                BulkResult.BulkResultItem item = new BulkResult(gson).new BulkResultItem(action.getBulkMethodName(), action.getIndex(),
+                        action.getType(), action.getId(), status, error == null ? "bulk请求失败" : error, null, null, null);
+                recordFailure(item);
+                acknowledge(action, item);
+            }
+        } else {
+            for (int i = 0; i < actions.size(); i++) {
+                recordFailure(failed.get(i));
+                acknowledge(actions.get(i), failed.get(i));
+            }
+        }
+    }
+
+    //失败计数 在maxFailedItems以内保留记录
+    private void recordFailure(BulkResult.BulkResultItem item) {
+        failedCount.incrementAndGet();
+        synchronized (failedItems) {
+            if (failedItems.size() < maxFailedItems) {
+                failedItems.add(item);
+            }
+        }
+        Consumer<BulkResult.BulkResultItem> listener = failureListener;
+        if (listener != null) {
+            try {
+                listener.accept(item);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    //完成该记录的ack 成功的结果status小于300且没有error
+    private void acknowledge(BulkableAction<?> action, BulkResult.BulkResultItem item) {
+        if (acks.isEmpty()) {
+            return;
+        }
+        CompletableFuture<WriteResult> ack = acks.remove(action);
+        if (ack == null) {
+            return;
+        }
+        if (item.error == null && item.status < 300) {
+            ack.complete(new WriteResult(item.index, item.type, item.id)
+                    .setStatus(item.status)
+                    .setVersion(item.version == null ? null : item.version.longValue()));
+        } else {
+            ack.completeExceptionally(new IOException("写入失败: " + item.id + " " + item.status + " " + item.error));
+        }
+    }
+
+    private static boolean isRetryable(int status) {
+        return status == 429 || status == 503;
+    }
+
+    /**
+     * 发送剩余数据并等待所有请求完成
+     *
+     * @param timeout
+     * @param unit
+     * @return 是否在超时前全部完成
+     * @throws InterruptedException
+     */
+    public boolean awaitClose(long timeout, TimeUnit unit) throws InterruptedException {
+        ScheduledExecutorService flushScheduler;
+        synchronized (lock) {
+            if (closed) {
+                return true;
+            }
+            closed = true;
+            flushScheduler = scheduler;
+        }
+        if (flushScheduler != null) {
+            flushScheduler.shutdown();
+        }
+        List<BulkableAction<?>> actions;
+        synchronized (lock) {
+            actions = takeBuffer();
+        }
+        if (actions != null) {
+            execute(actions);
+        }
+        ExecutorService workers;
+        synchronized (lock) {
+            workers = executor;
+        }
+        if (workers == null) {
+            return true;
+        }
+        workers.shutdown();
+        return workers.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * 发送剩余数据并等待所有请求完成
+     */
+    @Override
+    public void close() {
+        try {
+            awaitClose(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getSuccessCount() {
+        return successCount.get();
+    }
+
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * 重试后仍然失败的记录数 包括超过maxFailedItems未保留的记录
+     *
+     * @return
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * 重试后仍然失败的记录 最多maxFailedItems条
+     *
+     * @return
+     */
+    public List<BulkResult.BulkResultItem> getFailedItems() {
+        synchronized (failedItems) {
+            return new ArrayList<>(failedItems);
+        }
+    }
+
+    //一次bulk请求的处理结果
+    private static class Attempt {
+        private List<BulkableAction<?>> retry = new ArrayList<>();//需要重试的记录
+        private final List<BulkResult.BulkResultItem> failed = new ArrayList<>();//与retry一一对应 整个请求失败时为空
+        private int status;//整个请求失败时的http状态
+        private String error;//整个请求失败时的错误信息
+    }
+}
@@ -0,0 +1,228 @@
+package com.chris.es.jest.utils;
+
+import com.google.gson.Gson;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestClientFactory;
+import io.searchbox.client.config.HttpClientConfig;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by Chris Chen
+ * 2018/12/20
+ * Explain: JestClient构建器
+ * 只设置了节点时与Jest的默认配置相同；usePooledDefaults开启多线程连接池、较长的读取超时和空闲连接回收
+ * 多个节点时请求在节点间轮询；请求gzip压缩需要集群开启http.compression，需单独开启
+ * 响应的gzip解压由HttpClient自动处理
+ */
+
+public class JestClientBuilder {
+    private final List<String> servers = new ArrayList<>();
+    //为null时使用Jest的默认值
+    private Boolean multiThreaded;
+    private Integer maxTotalConnection;
+    private Integer maxConnectionPerRoute;
+    private Integer connTimeout;
+    private Integer readTimeout;
+    private boolean compressionEnabled;
+    private long maxConnectionIdleMillis;
+    private boolean discoveryEnabled;
+    private long discoveryFrequencyMillis = 30000;
+    private String discoveryFilter;
+    private Gson gson;
+
+    /**
+     * @param servers 种子节点 如http://127.0.0.1:9200
+     * @return
+     */
+    public static JestClientBuilder get(String... servers) {
+        return new JestClientBuilder().addServers(Arrays.asList(servers));
+    }
+
+    public static JestClientBuilder get(Collection<String> servers) {
+        return new JestClientBuilder().addServers(servers);
+    }
+
+    public JestClientBuilder addServer(String server) {
+        if (!StringUtils.isEmpty(server)) {
+            servers.add(server);
+        }
+        return this;
+    }
+
+    public JestClientBuilder addServers(Collection<String> servers) {
+        if (servers != null) {
+            servers.forEach(this::addServer);
+        }
+        return this;
+    }
+
+    /**
+     * 多线程连接池的推荐配置 100个连接，每个节点20个，读取超时30秒，空闲60秒的连接被回收
+     * 不包含请求gzip压缩
+     *
+     * @return
+     */
+    public JestClientBuilder usePooledDefaults() {
+        this.multiThreaded = true;
+        this.maxTotalConnection = 100;
+        this.maxConnectionPerRoute = 20;
+        this.readTimeout = 30000;
+        this.maxConnectionIdleMillis = 60000;
+        return this;
+    }
+
+    /**
+     * 使用多线程连接池 多线程共用一个JestClient时需要开启
+     *
+     * @param multiThreaded
+     * @return
+     */
+    public JestClientBuilder setMultiThreaded(boolean multiThreaded) {
+        this.multiThreaded = multiThreaded;
+        return this;
+    }
+
+    /**
+     * 连接池最大连接数
+     *
+     * @param maxTotalConnection
+     * @return
+     */
+    public JestClientBuilder setMaxTotalConnection(int maxTotalConnection) {
+        this.maxTotalConnection = maxTotalConnection;
+        return this;
+    }
+
+    /**
+     * 每个节点的最大连接数
+     *
+     * @param maxConnectionPerRoute
+     * @return
+     */
+    public JestClientBuilder setMaxConnectionPerRoute(int maxConnectionPerRoute) {
+        this.maxConnectionPerRoute = maxConnectionPerRoute;
+        return this;
+    }
+
+    /**
+     * 连接超时
+     *
+     * @param connTimeout 毫秒
+     * @return
+     */
+    public JestClientBuilder setConnTimeout(int connTimeout) {
+        this.connTimeout = connTimeout;
+        return this;
+    }
+
+    /**
+     * 读取超时
+     *
+     * @param readTimeout 毫秒
+     * @return
+     */
+    public JestClientBuilder setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+        return this;
+    }
+
+    /**
+     * 请求体gzip压缩 默认关闭 集群未开启http.compression时请求会失败
+     *
+     * @param compressionEnabled
+     * @return
+     */
+    public JestClientBuilder setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+        return this;
+    }
+
+    /**
+     * 空闲超过此时间的连接会被回收
+     *
+     * @param maxConnectionIdleMillis 小于等于0时不回收
+     * @return
+     */
+    public JestClientBuilder setMaxConnectionIdleMillis(long maxConnectionIdleMillis) {
+        this.maxConnectionIdleMillis = maxConnectionIdleMillis;
+        return this;
+    }
+
+    /**
+     * 定时从集群获取节点列表 请求在发现的节点间轮询
+     *
+     * @param frequencyMillis 发现间隔 小于等于0时关闭
+     * @return
+     */
+    public JestClientBuilder setDiscovery(long frequencyMillis) {
+        this.discoveryEnabled = frequencyMillis > 0;
+        this.discoveryFrequencyMillis = frequencyMillis;
+        return this;
+    }
+
+    /**
+     * 节点发现的过滤条件 如"type:arbitrary"
+     *
+     * @param discoveryFilter
+     * @return
+     */
+    public JestClientBuilder setDiscoveryFilter(String discoveryFilter) {
+        this.discoveryFilter = discoveryFilter;
+        return this;
+    }
+
+    public JestClientBuilder setGson(Gson gson) {
+        this.gson = gson;
+        return this;
+    }
+
+    public HttpClientConfig buildConfig() {
+        if (servers.isEmpty()) {
+            throw new IllegalStateException("至少需要一个ES节点");
+        }
+        HttpClientConfig.Builder builder = new HttpClientConfig.Builder(servers);
+        if (multiThreaded != null) {
+            builder.multiThreaded(multiThreaded);
+        }
+        if (maxTotalConnection != null) {
+            builder.maxTotalConnection(maxTotalConnection);
+        }
+        if (maxConnectionPerRoute != null) {
+            builder.defaultMaxTotalConnectionPerRoute(maxConnectionPerRoute);
+        }
+        if (connTimeout != null) {
+            builder.connTimeout(connTimeout);
+        }
+        if (readTimeout != null) {
+            builder.readTimeout(readTimeout);
+        }
+        if (compressionEnabled) {
+            builder.requestCompressionEnabled(true);
+        }
+        if (maxConnectionIdleMillis > 0) {
+            builder.maxConnectionIdleTime(maxConnectionIdleMillis, TimeUnit.MILLISECONDS);
+        }
+        if (discoveryEnabled) {
+            builder.discoveryEnabled(true)
+                    .discoveryFrequency(discoveryFrequencyMillis, TimeUnit.MILLISECONDS);
+            if (discoveryFilter != null) {
+                builder.discoveryFilter(discoveryFilter);
+            }
+        }
+        if (gson != null) {
+            builder.gson(gson);
+        }
+        return builder.build();
+    }
+
+    public JestClient build() {
+        JestClientFactory jestClientFactory = new JestClientFactory();
+        jestClientFactory.setHttpClientConfig(buildConfig());
+        return jestClientFactory.getObject();
+    }
+}
@@ -1,17 +1,25 @@
 package com.chris.es.jest.utils;
 
+import com.chris.es.jest.model.WriteResult;
 import io.searchbox.client.JestClient;
-import io.searchbox.core.Bulk;
+import io.searchbox.core.BulkResult;
+import io.searchbox.core.DocumentResult;
 import io.searchbox.core.Index;
-import io.searchbox.core.Search;
-import io.searchbox.core.SearchResult;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * @author wei.li
@@ -21,15 +29,46 @@ import java.util.stream.Collectors;
 public interface JestProcessor<T> {
     JestClient getJestClient();
 
+    /**
+     * save使用的写缓冲 返回非null时save只放入缓冲，由后台线程合并为bulk写入
+     * 需要在关闭前调用{@link WriteBehindBuffer#close}发送剩余数据
+     *
+     * @return 默认为null 每次save直接请求ES
+     */
+    default WriteBehindBuffer getWriteBehindBuffer() {
+        return null;
+    }
+
     /***
      * 保存文档
+     * 配置了写缓冲时只放入缓冲，不等待写入完成；DROP策略下被丢弃时记录EsMetrics.DROPPED
+     * 需要确认写入结果时使用saveWithAck
      * @param entity
      * @param index
      * @param type
+     * @throws IOException 请求异常；写缓冲已满且策略为FAIL
      */
     default void save(T entity, String index, String type) throws IOException {
+        WriteBehindBuffer writeBehindBuffer = getWriteBehindBuffer();
+        if (writeBehindBuffer != null) {
+            try {
+                if (!writeBehindBuffer.add(entity, index, type)) {
+                    EsMetrics.value(EsMetrics.OP_SAVE, index, type, EsMetrics.DROPPED, 1);
+                }
+            } catch (RejectedExecutionException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+            return;
+        }
         Index _index = new Index.Builder(entity).index(index).type(type).build();
-        getJestClient().execute(_index);
+        long start = EsMetrics.start();
+        try {
+            DocumentResult result = getJestClient().execute(_index);
+            EsMetrics.response(EsMetrics.OP_SAVE, index, type, null, result);
+        } finally {
+            EsMetrics.lap(EsMetrics.OP_SAVE, index, type, EsMetrics.HTTP, start);
+            SearchResultCache.invalidate(index, type);
+        }
     }
 
     /**
@@ -42,46 +81,337 @@ public interface JestProcessor<T> {
      */
     default void update(T entity, String index, String type, String id) throws IOException {
         Index _index = new Index.Builder(entity).index(index).type(type).id(id).build();
-        getJestClient().execute(_index);
+        long start = EsMetrics.start();
+        try {
+            DocumentResult result = getJestClient().execute(_index);
+            EsMetrics.response(EsMetrics.OP_UPDATE, index, type, null, result);
+        } finally {
+            EsMetrics.lap(EsMetrics.OP_UPDATE, index, type, EsMetrics.HTTP, start);
+            SearchResultCache.invalidate(index, type);
+        }
+    }
+
+    /**
+     * 局部更新 只发送变化的字段
+     *
+     * @param index
+     * @param type
+     * @param id
+     * @param fields 字段名 -> 新值
+     * @throws IOException 请求异常或更新失败
+     */
+    default void updateFields(String index, String type, String id, Map<String, ?> fields) throws IOException {
+        partialUpdate(PartialUpdate.get(index, type, id).setDoc(fields));
+    }
+
+    /**
+     * 局部更新或upsert
+     *
+     * @param update
+     * @throws IOException 请求异常或更新失败(如文档不存在且没有upsert)
+     */
+    default void partialUpdate(PartialUpdate update) throws IOException {
+        String body = update.toJson(ESUtils.getGson(getJestClient()));
+        long start = EsMetrics.start();
+        try {
+            DocumentResult result = getJestClient().execute(update.build(body));
+            EsMetrics.response(EsMetrics.OP_UPDATE, update.getIndex(), update.getType(), body, result);
+            if (!result.isSucceeded()) {
+                throw new IOException("局部更新失败: " + update.getId() + " " + result.getErrorMessage());
+            }
+        } finally {
+            EsMetrics.lap(EsMetrics.OP_UPDATE, update.getIndex(), update.getType(), EsMetrics.HTTP, start);
+            SearchResultCache.invalidate(update.getIndex(), update.getType());
+        }
+    }
+
+    /**
+     * 异步局部更新或upsert
+     *
+     * @param update
+     * @return 请求异常或更新失败(如文档不存在且没有upsert)时以IOException异常结束
+     */
+    default CompletableFuture<DocumentResult> partialUpdateAsync(PartialUpdate update) {
+        String body = update.toJson(ESUtils.getGson(getJestClient()));
+        long start = EsMetrics.start();
+        return JestAsync.execute(getJestClient(), update.build(body))
+                .whenComplete((result, throwable) -> {
+                    EsMetrics.lap(EsMetrics.OP_UPDATE, update.getIndex(), update.getType(), EsMetrics.HTTP, start);
+                    EsMetrics.response(EsMetrics.OP_UPDATE, update.getIndex(), update.getType(), body, result);
+                    SearchResultCache.invalidate(update.getIndex(), update.getType());
+                })
+                .thenApply(result -> {
+                    if (!result.isSucceeded()) {
+                        throw new CompletionException(new IOException("局部更新失败: " + update.getId() + " " + result.getErrorMessage()));
+                    }
+                    return result;
+                });
+    }
+
+    /**
+     * 批量局部更新或upsert 与saveAll一样切分和重试
+     *
+     * @param updates
+     * @throws IOException 重试后仍有记录更新失败
+     */
+    default void partialUpdateAll(List<PartialUpdate> updates) throws IOException {
+        if (!Optional.ofNullable(updates).isPresent() || updates.isEmpty()) {
+            return;
+        }
+        JestBulkProcessor bulkProcessor = createBulkProcessor();
+        try {
+            updates.forEach(bulkProcessor::addUpdate);
+        } finally {
+            bulkProcessor.close();
+        }
+        List<BulkResult.BulkResultItem> failedItems = bulkProcessor.getFailedItems();
+        if (!failedItems.isEmpty()) {
+            BulkResult.BulkResultItem item = failedItems.get(0);
+            throw new IOException("批量更新失败" + bulkProcessor.getFailedCount() + "条, 例如: " + item.id + " " + item.status + " " + item.error);
+        }
     }
 
     /**
      * 批量保存文档
+     * 自动按条数和大小切分为多个bulk请求，被拒绝的记录会退避重试
      *
      * @param entitys
      * @param index
      * @param type
+     * @throws IOException 重试后仍有记录写入失败
      */
     default void saveAll(List<T> entitys, String index, String type) throws IOException {
-        Bulk.Builder _bulk = new Bulk.Builder();
+        if (!Optional.ofNullable(entitys).isPresent() || entitys.isEmpty()) {
+            return;
+        }
+        JestBulkProcessor bulkProcessor = createBulkProcessor();
+        try {
+            entitys.forEach(value -> bulkProcessor.addDocument(value, index, type));
+        } finally {
+            bulkProcessor.close();
+        }
+        List<BulkResult.BulkResultItem> failedItems = bulkProcessor.getFailedItems();
+        if (!failedItems.isEmpty()) {
+            BulkResult.BulkResultItem item = failedItems.get(0);
+            throw new IOException("批量保存失败" + bulkProcessor.getFailedCount() + "条, 例如: " + item.id + " " + item.status + " " + item.error);
+        }
+    }
 
-        if (Optional.ofNullable(entitys).isPresent()) {
-            entitys.stream().forEach(value -> {
-                Index _index = new Index.Builder(value).index(index).type(type).build();
-                _bulk.addAction(_index);
+    /**
+     * 创建saveAll使用的批量写入处理器 可覆盖以调整切分大小和并发数
+     *
+     * @return
+     */
+    default JestBulkProcessor createBulkProcessor() {
+        return JestBulkProcessor.get(getJestClient());
+    }
+
+    /**
+     * 保存文档并确认写入结果
+     * 配置了写缓冲时经过缓冲写入，写入完成后确认；否则直接异步请求ES
+     *
+     * @param entity
+     * @param index
+     * @param type
+     * @return 写入成功时为该记录的结果；写入失败时以IOException异常结束，
+     * 写缓冲已满(DROP或FAIL策略)时以RejectedExecutionException异常结束，写缓冲已关闭时以IllegalStateException异常结束
+     */
+    default CompletableFuture<WriteResult> saveWithAck(T entity, String index, String type) {
+        WriteBehindBuffer writeBehindBuffer = getWriteBehindBuffer();
+        if (writeBehindBuffer != null) {
+            CompletableFuture<WriteResult> ack;
+            try {
+                ack = writeBehindBuffer.addWithAck(entity, index, type);
+            } catch (RejectedExecutionException | IllegalStateException e) {
+                ack = new CompletableFuture<>();
+                ack.completeExceptionally(e);
+            }
+            ack.whenComplete((item, throwable) -> {
+                if (throwable instanceof RejectedExecutionException) {
+                    EsMetrics.value(EsMetrics.OP_SAVE, index, type, EsMetrics.DROPPED, 1);
+                }
             });
+            return ack;
+        }
+        return saveAsync(entity, index, type).thenApply(result -> {
+            if (!result.isSucceeded()) {
+                throw new CompletionException(new IOException("写入失败: " + result.getId() + " " + result.getResponseCode() + " " + result.getErrorMessage()));
+            }
+            return new WriteResult(index, type, result.getId())
+                    .setStatus(result.getResponseCode())
+                    .setVersion(result.getVersion());
+        });
+    }
+
+    /**
+     * 异步保存文档
+     *
+     * @param entity
+     * @param index
+     * @param type
+     * @return
+     */
+    default CompletableFuture<DocumentResult> saveAsync(T entity, String index, String type) {
+        Index _index = new Index.Builder(entity).index(index).type(type).build();
+        long start = EsMetrics.start();
+        return JestAsync.execute(getJestClient(), _index)
+                .whenComplete((result, throwable) -> {
+                    EsMetrics.lap(EsMetrics.OP_SAVE, index, type, EsMetrics.HTTP, start);
+                    EsMetrics.response(EsMetrics.OP_SAVE, index, type, null, result);
+                    SearchResultCache.invalidate(index, type);
+                });
+    }
+
+    /**
+     * 异步更新数据
+     *
+     * @param entity
+     * @param index
+     * @param type
+     * @param id
+     * @return
+     */
+    default CompletableFuture<DocumentResult> updateAsync(T entity, String index, String type, String id) {
+        Index _index = new Index.Builder(entity).index(index).type(type).id(id).build();
+        long start = EsMetrics.start();
+        return JestAsync.execute(getJestClient(), _index)
+                .whenComplete((result, throwable) -> {
+                    EsMetrics.lap(EsMetrics.OP_UPDATE, index, type, EsMetrics.HTTP, start);
+                    EsMetrics.response(EsMetrics.OP_UPDATE, index, type, null, result);
+                    SearchResultCache.invalidate(index, type);
+                });
+    }
+
+    /**
+     * 异步批量保存文档
+     * 与saveAll一样按createBulkProcessor的条数和大小切分，被拒绝的记录会退避重试
+     * 请求通过{@link JestAsync#execute}发出，等待响应和退避期间不占用线程
+     *
+     * @param entitys
+     * @param index
+     * @param type
+     * @return 有记录写入失败时以IOException结束
+     */
+    default CompletableFuture<Void> saveAllAsync(List<T> entitys, String index, String type) {
+        if (!Optional.ofNullable(entitys).isPresent() || entitys.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
         }
+        JestBulkProcessor bulkProcessor = createBulkProcessor();
+        List<Index> actions = new ArrayList<>(entitys.size());
+        try {
+            entitys.forEach(value -> actions.add(bulkProcessor.buildIndex(value, index, type)));
+        } catch (RuntimeException e) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+        return bulkProcessor.executeAsync(actions).thenRun(() -> {
+            List<BulkResult.BulkResultItem> failedItems = bulkProcessor.getFailedItems();
+            if (!failedItems.isEmpty()) {
+                BulkResult.BulkResultItem item = failedItems.get(0);
+                throw new CompletionException(new IOException("批量保存失败" + bulkProcessor.getFailedCount() + "条, 例如: " + item.id + " " + item.status + " " + item.error));
+            }
+        });
+    }
 
-        getJestClient().execute(_bulk.build());
+    /**
+     * 根据id实时读取文档
+     *
+     * @param clazz
+     * @param index
+     * @param type
+     * @param id
+     * @return 文档不存在或请求失败时为null
+     */
+    default T getById(Class<T> clazz, String index, String type, String id) {
+        return ESUtils.getById(getJestClient(), index, type, id, clazz);
+    }
+
+    /**
+     * 根据id批量实时读取文档 大量id时拆分为并发的_mget请求
+     *
+     * @param clazz
+     * @param index
+     * @param type
+     * @param ids
+     * @return 与ids顺序一致，不存在的文档跳过
+     */
+    default List<T> getByIds(Class<T> clazz, String index, String type, Collection<String> ids) {
+        return ESUtils.getByIds(getJestClient(), index, type, ids, clazz);
+    }
+
+    /**
+     * 异步根据id批量实时读取文档
+     *
+     * @param clazz
+     * @param index
+     * @param type
+     * @param ids
+     * @return
+     */
+    default CompletableFuture<List<T>> getByIdsAsync(Class<T> clazz, String index, String type, Collection<String> ids) {
+        return ESUtils.getByIdsAsync(getJestClient(), index, type, ids, clazz);
     }
 
     /**
      * 查询所有文档
+     * 通过scroll分批拉取，返回索引中的全部数据
+     * 数据量大时使用{@link #streamAll}或{@link #findAll(Class, String, String, Consumer)}
      *
      * @return
      */
     default List<T> findAll(Class<T> clazz, String index, String type) throws IOException {
-        SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
-        searchSourceBuilder.query(QueryBuilders.matchAllQuery()); //match_all
-        Search search = new Search.Builder(searchSourceBuilder.toString()).addIndex(index).addType(type).build();
-        SearchResult result = getJestClient().execute(search);
-
-        if (result.isSucceeded()) {
-            List<SearchResult.Hit<T, Void>> hits = result.getHits(clazz);
-            if (hits != null) {
-                return hits.stream().map(hit -> hit.source).collect(Collectors.toList());
+        List<T> dataList = new ArrayList<>();
+        findAll(clazz, index, type, dataList::add);
+        return dataList;
+    }
+
+    /**
+     * 逐条回调所有文档 内存中只保留当前一批数据
+     *
+     * @param clazz
+     * @param index
+     * @param type
+     * @param consumer
+     * @throws IOException
+     */
+    default void findAll(Class<T> clazz, String index, String type, Consumer<? super T> consumer) throws IOException {
+        try (ScrollIterator<T> iterator = scrollAll(clazz, index, type, ScrollIterator.DEFAULT_BATCH_SIZE)) {
+            while (iterator.hasNext()) {
+                consumer.accept(iterator.next());
             }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
-        return null;
+    }
+
+    /**
+     * 以流的形式惰性读取所有文档
+     * 使用完毕需要关闭流以及时释放scroll上下文
+     *
+     * @param clazz
+     * @param index
+     * @param type
+     * @return
+     */
+    default Stream<T> streamAll(Class<T> clazz, String index, String type) {
+        return scrollAll(clazz, index, type, ScrollIterator.DEFAULT_BATCH_SIZE).stream();
+    }
+
+    /**
+     * 创建遍历所有文档的scroll迭代器 按_doc排序以获得最高的scroll效率
+     *
+     * @param clazz
+     * @param index
+     * @param type
+     * @param batchSize 每批拉取的数量
+     * @return
+     */
+    default ScrollIterator<T> scrollAll(Class<T> clazz, String index, String type, int batchSize) {
+        SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+        searchSourceBuilder.query(QueryBuilders.matchAllQuery()) //match_all
+                .sort("_doc")
+                .size(batchSize);
+        return new ScrollIterator<>(getJestClient(), searchSourceBuilder.toString(), index, type, clazz, ScrollIterator.DEFAULT_KEEP_ALIVE);
     }
 }
@@ -1,11 +1,15 @@
 package com.chris.es.jest.utils;
 
+import com.chris.es.jest.model.WriteResult;
 import io.searchbox.client.JestClient;
-import io.searchbox.client.JestClientFactory;
-import io.searchbox.client.config.HttpClientConfig;
+import io.searchbox.core.DocumentResult;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * Created by Chris Chen
@@ -15,9 +19,34 @@ import java.util.List;
 
 public class JestUtil {
     private static JestClient jestClient;
+    private static volatile WriteBehindBuffer writeBehindBuffer;
 
     public static <T> void save(T data, String index, String type) throws IOException {
-        ((JestProcessor<T>) () -> jestClient).save(data, index, type);
+        new JestProcessor<T>() {
+            @Override
+            public JestClient getJestClient() {
+                return jestClient;
+            }
+
+            @Override
+            public WriteBehindBuffer getWriteBehindBuffer() {
+                return writeBehindBuffer;
+            }
+        }.save(data, index, type);
+    }
+
+    public static <T> CompletableFuture<WriteResult> saveWithAck(T data, String index, String type) {
+        return new JestProcessor<T>() {
+            @Override
+            public JestClient getJestClient() {
+                return jestClient;
+            }
+
+            @Override
+            public WriteBehindBuffer getWriteBehindBuffer() {
+                return writeBehindBuffer;
+            }
+        }.saveWithAck(data, index, type);
     }
 
     public static <T> void saveAll(List<T> dataList, String index, String type) throws IOException {
@@ -28,6 +57,14 @@ public class JestUtil {
         ((JestProcessor<T>) () -> jestClient).update(data, index, type, id);
     }
 
+    public static <T> CompletableFuture<DocumentResult> saveAsync(T data, String index, String type) {
+        return ((JestProcessor<T>) () -> jestClient).saveAsync(data, index, type);
+    }
+
+    public static <T> CompletableFuture<Void> saveAllAsync(List<T> dataList, String index, String type) {
+        return ((JestProcessor<T>) () -> jestClient).saveAllAsync(dataList, index, type);
+    }
+
     public static <T> List<T> findAll(Class<T> clazz, String index, String type) throws IOException {
         return new JestProcessor<T>() {
             @Override
@@ -37,6 +74,31 @@ public class JestUtil {
         }.findAll(clazz, index, type);
     }
 
+    public static <T> void findAll(Class<T> clazz, String index, String type, Consumer<? super T> consumer) throws IOException {
+        ((JestProcessor<T>) () -> jestClient).findAll(clazz, index, type, consumer);
+    }
+
+    public static <T> Stream<T> streamAll(Class<T> clazz, String index, String type) {
+        return ((JestProcessor<T>) () -> jestClient).streamAll(clazz, index, type);
+    }
+
+    /**
+     * 分片并行读取所有文档
+     *
+     * @param clazz
+     * @param index
+     * @param type
+     * @param slices   分片数 同时也是并行线程数
+     * @param consumer 参数为slice编号和数据 会被多个线程同时调用
+     * @return 读取的总条数
+     */
+    public static <T> long findAllParallel(Class<T> clazz, String index, String type, int slices, BiConsumer<Integer, ? super T> consumer) {
+        return SlicedScrollReader.get(jestClient, clazz)
+                .setIndexAndType(index, type)
+                .setSlices(slices)
+                .read(consumer);
+    }
+
     public static JestClient getJestClient() {
         return jestClient;
     }
@@ -45,17 +107,44 @@ public class JestUtil {
         JestUtil.jestClient = jestClient;
     }
 
+    public static WriteBehindBuffer getWriteBehindBuffer() {
+        return writeBehindBuffer;
+    }
+
+    /**
+     * 设置save和saveWithAck使用的写缓冲 为null时直接请求ES
+     * 替换或取消时不会关闭原来的缓冲，需要自行调用close
+     *
+     * @param writeBehindBuffer
+     */
+    public static void setWriteBehindBuffer(WriteBehindBuffer writeBehindBuffer) {
+        JestUtil.writeBehindBuffer = writeBehindBuffer;
+    }
+
     public static void init(JestClient client) {
         JestUtil.jestClient = client;
     }
 
+    /**
+     * 创建JestClient并设为默认client 只设置连接超时，其它使用Jest的默认配置
+     * 连接池、读取超时和gzip压缩通过createJestClient(JestClientBuilder)设置
+     *
+     * @param serverUri
+     * @param timeout   连接超时(秒)
+     * @return
+     */
     public static JestClient createJestClient(String serverUri, int timeout) {
-        JestClientFactory jestClientFactory = new JestClientFactory();
-        HttpClientConfig config = new HttpClientConfig.Builder(serverUri)
-                .connTimeout(1000 * timeout)
-                .build();
-        jestClientFactory.setHttpClientConfig(config);
-        JestUtil.jestClient = jestClientFactory.getObject();
+        return createJestClient(JestClientBuilder.get(serverUri).setConnTimeout(1000 * timeout));
+    }
+
+    /**
+     * 按构建器创建JestClient并设为默认client
+     *
+     * @param builder
+     * @return
+     */
+    public static JestClient createJestClient(JestClientBuilder builder) {
+        JestUtil.jestClient = builder.build();
         return jestClient;
     }
 
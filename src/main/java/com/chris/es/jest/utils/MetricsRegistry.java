@@ -0,0 +1,33 @@
+package com.chris.es.jest.utils;
+
+/**
+ * Created by Chris Chen
+ * 2018/12/21
+ * Explain: 指标记录接口
+ * 可以实现此接口桥接到Micrometer、JMX等，默认实现见{@link HdrMetricsRegistry}
+ * 方法会在请求线程中同步调用，实现需要线程安全且尽量不阻塞
+ */
+
+public interface MetricsRegistry {
+    /**
+     * 记录一个阶段的耗时
+     *
+     * @param operation 操作 如search、save
+     * @param index
+     * @param type
+     * @param stage     阶段 见{@link EsMetrics}中的常量
+     * @param nanos     纳秒
+     */
+    void recordTime(String operation, String index, String type, String stage, long nanos);
+
+    /**
+     * 记录一个数值
+     *
+     * @param operation
+     * @param index
+     * @param type
+     * @param metric    指标 如命中条数、请求字节数、服务端took
+     * @param value
+     */
+    void recordValue(String operation, String index, String type, String metric, long value);
+}
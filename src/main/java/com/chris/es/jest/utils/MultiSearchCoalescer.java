@@ -0,0 +1,202 @@
+package com.chris.es.jest.utils;
+
+import io.searchbox.client.JestClient;
+import io.searchbox.core.MultiSearch;
+import io.searchbox.core.MultiSearchResult;
+import io.searchbox.core.Search;
+import io.searchbox.core.SearchResult;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Created by Chris Chen
+ * 2018/12/19
+ * Explain: 合并并发搜索为一次_msearch
+ * 时间窗口内到达的搜索或达到批次大小时合并发送，再把每个响应分发给对应的调用方
+ * 通过ESUtils.setMultiSearchCoalescer开启后，searchPage/searchList等对同一个JestClient的搜索都会经过合并
+ */
+
+public class MultiSearchCoalescer implements Closeable {
+    private final JestClient jestClient;
+    private final long windowMillis;
+    private final int maxBatchSize;
+
+    private final Queue<PendingSearch> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "jest-msearch");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean closed;
+
+    /**
+     * @param jestClient
+     * @param windowMillis 等待合并的时间窗口
+     * @param maxBatchSize 一次_msearch最多包含的搜索数
+     */
+    public MultiSearchCoalescer(JestClient jestClient, long windowMillis, int maxBatchSize) {
+        this.jestClient = jestClient;
+        this.windowMillis = Math.max(1, windowMillis);
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+    }
+
+    public JestClient getJestClient() {
+        return jestClient;
+    }
+
+    /**
+     * 提交一个搜索 与其它搜索合并后发送
+     * 关闭后不再合并，直接单独发送
+     *
+     * @param search
+     * @return
+     */
+    public CompletableFuture<SearchResult> submit(Search search) {
+        if (closed) {
+            return JestAsync.execute(jestClient, search);
+        }
+        PendingSearch pending = new PendingSearch(search);
+        queue.offer(pending);
+        if (queued.incrementAndGet() >= maxBatchSize) {
+            flush();
+        } else if (scheduled.compareAndSet(false, true)) {
+            scheduleFlush();
+        }
+        return pending.future;
+    }
+
+    /**
+     * 提交一个搜索并等待结果
+     *
+     * @param search
+     * @return
+     * @throws IOException
+     */
+    public SearchResult search(Search search) throws IOException {
+        try {
+            return submit(search).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private void flushScheduled() {
+        scheduled.set(false);
+        flush();
+        if (queued.get() > 0 && scheduled.compareAndSet(false, true)) {
+            scheduleFlush();
+        }
+    }
+
+    //定时器已关闭时(与close并发)立即发送 保证排队中的搜索都能完成
+    private void scheduleFlush() {
+        try {
+            scheduler.schedule(this::flushScheduled, windowMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            scheduled.set(false);
+            flush();
+        }
+    }
+
+    /**
+     * 立即发送排队中的搜索
+     */
+    public void flush() {
+        while (true) {
+            List<PendingSearch> batch = new ArrayList<>(Math.min(maxBatchSize, Math.max(1, queued.get())));
+            PendingSearch pending;
+            while (batch.size() < maxBatchSize && (pending = queue.poll()) != null) {
+                queued.decrementAndGet();
+                batch.add(pending);
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            send(batch);
+            if (queued.get() < maxBatchSize) {
+                return;
+            }
+        }
+    }
+
+    private void send(List<PendingSearch> batch) {
+        if (batch.size() == 1) {
+            PendingSearch pending = batch.get(0);
+            JestAsync.execute(jestClient, pending.search).whenComplete((result, throwable) -> {
+                if (throwable != null) {
+                    pending.future.completeExceptionally(throwable);
+                } else {
+                    pending.future.complete(result);
+                }
+            });
+            return;
+        }
+        List<Search> searches = new ArrayList<>(batch.size());
+        for (PendingSearch pending : batch) {
+            searches.add(pending.search);
+        }
+        JestAsync.execute(jestClient, new MultiSearch.Builder(searches).build()).whenComplete((result, throwable) -> {
+            if (throwable != null) {
+                batch.forEach(pending -> pending.future.completeExceptionally(throwable));
+                return;
+            }
+            List<MultiSearchResult.MultiSearchResponse> responses = result.isSucceeded() ? result.getResponses() : null;
+            if (responses == null || responses.size() != batch.size()) {
+                IOException e = new IOException("_msearch失败: " + result.getErrorMessage());
+                batch.forEach(pending -> pending.future.completeExceptionally(e));
+                return;
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).future.complete(toSearchResult(responses.get(i)));
+            }
+        });
+    }
+
+    //单个搜索出错时与单独搜索一致 返回失败的SearchResult
+    private SearchResult toSearchResult(MultiSearchResult.MultiSearchResponse response) {
+        if (!response.isError && response.searchResult != null) {
+            return response.searchResult;
+        }
+        SearchResult failed = new SearchResult(ESUtils.getGson(jestClient));
+        failed.setSucceeded(false);
+        failed.setErrorMessage(response.errorMessage);
+        return failed;
+    }
+
+    /**
+     * 发送剩余的搜索并停止定时器
+     */
+    @Override
+    public void close() {
+        closed = true;
+        scheduler.shutdown();
+        flush();
+    }
+
+    private static class PendingSearch {
+        private final Search search;
+        private final CompletableFuture<SearchResult> future = new CompletableFuture<>();
+
+        PendingSearch(Search search) {
+            this.search = search;
+        }
+    }
+}
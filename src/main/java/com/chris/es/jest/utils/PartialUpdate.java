@@ -0,0 +1,225 @@
+package com.chris.es.jest.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.searchbox.core.Update;
+import io.searchbox.params.Parameters;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Created by Chris Chen
+ * 2018/12/28
+ * Explain: 局部更新请求
+ * 只发送变化的字段(doc)或脚本，ES在服务端合并到原文档，不需要重新发送整个实体
+ * 可以设置文档不存在时写入的upsert文档，或者doc_as_upsert把doc本身作为upsert文档
+ * 单条执行见ESUtils.partialUpdate/JestProcessor.partialUpdate，批量执行见JestBulkProcessor.addUpdate
+ */
+
+public class PartialUpdate {
+    //脚本内容的参数名 ES5.6以上为source，ES2.x和5.6以前需要设置为inline
+    private static volatile String scriptSourceName = "source";
+
+    private final String index;
+    private final String type;
+    private final String id;
+    private Map<String, Object> doc;//变化的字段
+    private String script;
+    private String scriptLang;
+    private Map<String, Object> scriptParams;
+    private Object upsert;//文档不存在时写入的文档
+    private boolean docAsUpsert;
+    private Integer retryOnConflict;
+
+    public static String getScriptSourceName() {
+        return scriptSourceName;
+    }
+
+    /**
+     * 设置脚本内容的参数名 对局部更新和update_by_query都生效
+     *
+     * @param scriptSourceName ES5.6以上为source，ES2.x和5.6以前为inline
+     */
+    public static void setScriptSourceName(String scriptSourceName) {
+        if (!StringUtils.isEmpty(scriptSourceName)) {
+            PartialUpdate.scriptSourceName = scriptSourceName;
+        }
+    }
+
+    public PartialUpdate(String index, String type, String id) {
+        this.index = index;
+        this.type = type;
+        this.id = id;
+    }
+
+    public static PartialUpdate get(String index, String type, String id) {
+        return new PartialUpdate(index, type, id);
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * 设置一个字段的新值 值为null时该字段更新为null
+     *
+     * @param fieldName
+     * @param value
+     * @return
+     */
+    public PartialUpdate set(String fieldName, Object value) {
+        if (this.doc == null) {
+            this.doc = new LinkedHashMap<>();
+        }
+        this.doc.put(fieldName, value);
+        return this;
+    }
+
+    /**
+     * 设置多个字段的新值
+     *
+     * @param fields
+     * @return
+     */
+    public PartialUpdate setDoc(Map<String, ?> fields) {
+        if (fields != null) {
+            fields.forEach(this::set);
+        }
+        return this;
+    }
+
+    public Map<String, Object> getDoc() {
+        return doc;
+    }
+
+    /**
+     * 使用脚本更新
+     *
+     * @param script 脚本内容 如 ctx._source.count += params.delta
+     * @param params 脚本参数 可以为null
+     * @return
+     */
+    public PartialUpdate setScript(String script, Map<String, ?> params) {
+        this.script = script;
+        this.scriptParams = params == null ? null : new LinkedHashMap<>(params);
+        return this;
+    }
+
+    public String getScript() {
+        return script;
+    }
+
+    /**
+     * 脚本语言 为null时使用ES默认语言
+     *
+     * @param scriptLang
+     * @return
+     */
+    public PartialUpdate setScriptLang(String scriptLang) {
+        this.scriptLang = scriptLang;
+        return this;
+    }
+
+    /**
+     * 文档不存在时写入的文档
+     *
+     * @param upsert 实体或Map
+     * @return
+     */
+    public PartialUpdate setUpsert(Object upsert) {
+        this.upsert = upsert;
+        return this;
+    }
+
+    /**
+     * 文档不存在时把doc作为新文档写入
+     *
+     * @param docAsUpsert
+     * @return
+     */
+    public PartialUpdate setDocAsUpsert(boolean docAsUpsert) {
+        this.docAsUpsert = docAsUpsert;
+        return this;
+    }
+
+    /**
+     * 版本冲突时ES内部重试的次数
+     *
+     * @param retryOnConflict
+     * @return
+     */
+    public PartialUpdate setRetryOnConflict(Integer retryOnConflict) {
+        this.retryOnConflict = retryOnConflict;
+        return this;
+    }
+
+    /**
+     * 生成请求体
+     *
+     * @param gson 用于序列化字段值和upsert文档
+     * @return
+     * @throws IllegalStateException 没有设置doc或脚本
+     */
+    public String toJson(Gson gson) {
+        if (doc == null && script == null) {
+            throw new IllegalStateException("局部更新需要设置字段或脚本: " + index + "/" + type + "/" + id);
+        }
+        JsonObject body = new JsonObject();
+        if (doc != null) {
+            body.add("doc", toJsonTree(gson, doc));
+        }
+        if (script != null) {
+            JsonObject scriptJson = new JsonObject();
+            scriptJson.addProperty(scriptSourceName, script);
+            if (scriptLang != null) {
+                scriptJson.addProperty("lang", scriptLang);
+            }
+            if (scriptParams != null) {
+                scriptJson.add("params", toJsonTree(gson, scriptParams));
+            }
+            body.add("script", scriptJson);
+        }
+        if (upsert != null) {
+            body.add("upsert", gson.toJsonTree(upsert));
+        }
+        if (docAsUpsert && doc != null) {
+            body.addProperty("doc_as_upsert", true);
+        }
+        return body.toString();
+    }
+
+    //序列化Map时保留null值 用于把字段更新为null
+    private static JsonElement toJsonTree(Gson gson, Map<String, Object> values) {
+        JsonObject json = new JsonObject();
+        values.forEach((key, value) -> json.add(key, gson.toJsonTree(value)));
+        return json;
+    }
+
+    /**
+     * 转换为Jest的Update请求
+     *
+     * @param gson
+     * @return
+     */
+    public Update build(Gson gson) {
+        return build(toJson(gson));
+    }
+
+    Update build(String body) {
+        Update.Builder builder = new Update.Builder(body).index(index).type(type).id(id);
+        if (retryOnConflict != null) {
+            builder.setParameter(Parameters.RETRY_ON_CONFLICT, retryOnConflict);
+        }
+        return builder.build();
+    }
+}
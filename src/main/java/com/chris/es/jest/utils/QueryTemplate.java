@@ -0,0 +1,345 @@
+package com.chris.es.jest.utils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+/**
+ * Created by Chris Chen
+ * 2018/12/14
+ * Explain: 预渲染的查询模板
+ * 查询条件中的值在构建时用占位符代替，按查询结构(字段、条件类型、排序、分页方式)缓存渲染好的json，
+ * 相同结构的查询只需把值填入模板，不再渲染整棵builder树
+ * 值只支持字符串、数字、布尔和null，其它类型(如日期)的查询按原方式渲染且不缓存
+ */
+
+public class QueryTemplate {
+    private static final String SLOT_PREFIX = "__jest_slot_" + UUID.randomUUID().toString().replace("-", "") + "_";
+    private static final String SLOT_SUFFIX = "__";
+
+    private static volatile boolean enabled = true;
+    private static volatile Cache<String, QueryTemplate> templateCache = buildCache(512);
+
+    private final String[] segments;
+    private final int[] slots;
+    private final int length;
+
+    private QueryTemplate(String[] segments, int[] slots) {
+        this.segments = segments;
+        this.slots = slots;
+        int length = 0;
+        for (String segment : segments) {
+            length += segment.length();
+        }
+        this.length = length;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 开启或关闭模板缓存
+     *
+     * @param enabled
+     */
+    public static void setEnabled(boolean enabled) {
+        QueryTemplate.enabled = enabled;
+    }
+
+    /**
+     * 设置最多缓存的查询结构数量
+     *
+     * @param maximumSize
+     */
+    public static synchronized void setCacheSize(int maximumSize) {
+        if (maximumSize > 0) {
+            templateCache = buildCache(maximumSize);
+        }
+    }
+
+    public static long getCacheSize() {
+        return templateCache.size();
+    }
+
+    public static void clear() {
+        templateCache.invalidateAll();
+    }
+
+    private static Cache<String, QueryTemplate> buildCache(int maximumSize) {
+        return CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .build();
+    }
+
+    /**
+     * 创建一次查询构建用的值绑定器
+     *
+     * @return
+     */
+    public static Binder binder() {
+        return new Binder(!enabled);
+    }
+
+    /**
+     * 创建不使用模板的值绑定器 用于值已经写入builder的场景
+     *
+     * @return
+     */
+    public static Binder directBinder() {
+        return new Binder(true);
+    }
+
+    /**
+     * 已经是json格式的值 原样写入
+     *
+     * @param json
+     * @return
+     */
+    public static Object raw(String json) {
+        return new RawJson(json);
+    }
+
+    //把带占位符的json切分为片段
+    static QueryTemplate compile(String json) {
+        List<String> segments = new ArrayList<>();
+        List<Integer> slots = new ArrayList<>();
+        String marker = "\"" + SLOT_PREFIX;
+        int from = 0;
+        int start;
+        while ((start = json.indexOf(marker, from)) >= 0) {
+            int numberStart = start + marker.length();
+            int numberEnd = json.indexOf(SLOT_SUFFIX + "\"", numberStart);
+            if (numberEnd < 0) {
+                break;
+            }
+            segments.add(json.substring(from, start));
+            slots.add(Integer.parseInt(json.substring(numberStart, numberEnd)));
+            from = numberEnd + SLOT_SUFFIX.length() + 1;
+        }
+        segments.add(json.substring(from));
+        int[] slotArray = new int[slots.size()];
+        for (int i = 0; i < slotArray.length; i++) {
+            slotArray[i] = slots.get(i);
+        }
+        return new QueryTemplate(segments.toArray(new String[0]), slotArray);
+    }
+
+    String fill(List<Object> values) {
+        StringBuilder sb = new StringBuilder(length + slots.length * 16);
+        for (int i = 0; i < slots.length; i++) {
+            sb.append(segments[i]);
+            writeValue(sb, values.get(slots[i]));
+        }
+        sb.append(segments[slots.length]);
+        return sb.toString();
+    }
+
+    //能够直接写入模板的值
+    private static boolean isTemplateValue(Object value) {
+        if (value == null || value instanceof String || value instanceof Boolean || value instanceof RawJson
+                || value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            return true;
+        }
+        if (value instanceof Double) {
+            return !((Double) value).isNaN() && !((Double) value).isInfinite();
+        }
+        if (value instanceof Float) {
+            return !((Float) value).isNaN() && !((Float) value).isInfinite();
+        }
+        return false;
+    }
+
+    /**
+     * 把值写为json
+     *
+     * @param sb
+     * @param value 字符串、数字、布尔、null或raw
+     */
+    static void writeValue(StringBuilder sb, Object value) {
+        if (value == null) {
+            sb.append("null");
+        } else if (value instanceof String) {
+            writeString(sb, (String) value);
+        } else if (value instanceof RawJson) {
+            sb.append(((RawJson) value).json);
+        } else {
+            sb.append(value.toString());
+        }
+    }
+
+    static void writeString(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * 一次查询构建过程中的值绑定
+     * 记录查询结构作为模板的key，记录值用于填充模板
+     */
+    public static class Binder {
+        private final boolean direct;
+        private final StringBuilder shape = new StringBuilder(128);
+        private final List<Object> values = new ArrayList<>();
+        private boolean cacheable = true;
+
+        private Binder(boolean direct) {
+            this.direct = direct;
+        }
+
+        /**
+         * 绑定一个值
+         *
+         * @param clause 条件类型
+         * @param field  字段 没有时为null
+         * @param value  值
+         * @return 构建查询时使用的值 可能是占位符
+         */
+        public Object bind(String clause, String field, Object value) {
+            shape.append(clause).append(':').append(field).append(';');
+            if (direct) {
+                return value;
+            }
+            if (!isTemplateValue(value)) {
+                //值会直接渲染到json中，结构不能缓存
+                cacheable = false;
+                return value;
+            }
+            values.add(value);
+            return SLOT_PREFIX + (values.size() - 1) + SLOT_SUFFIX;
+        }
+
+        /**
+         * 绑定一组值 用于terms等数组参数
+         * 整组值只占一个占位符，值的数量不同时仍使用同一个模板
+         *
+         * @param clause 条件类型
+         * @param field  字段
+         * @param values 值
+         * @return 构建查询时使用的数组 可能只包含一个占位符
+         */
+        public Object[] bindAll(String clause, String field, Collection<?> values) {
+            shape.append(clause).append(':').append(field).append(';');
+            if (direct) {
+                return values.toArray();
+            }
+            StringBuilder sb = new StringBuilder(values.size() * 16);
+            for (Object value : values) {
+                if (!isTemplateValue(value)) {
+                    cacheable = false;
+                    return values.toArray();
+                }
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                writeValue(sb, value);
+            }
+            //builder把占位符渲染为["占位符"] 填充后成为[v1,v2,...]
+            this.values.add(new RawJson(sb.toString()));
+            return new Object[]{SLOT_PREFIX + (this.values.size() - 1) + SLOT_SUFFIX};
+        }
+
+        /**
+         * 绑定一个字符串值 用于只接受字符串的builder
+         *
+         * @param clause
+         * @param field
+         * @param value
+         * @return
+         */
+        public String bindString(String clause, String field, String value) {
+            return (String) bind(clause, field, value);
+        }
+
+        /**
+         * 记录不带值的结构信息
+         *
+         * @param clause
+         * @return
+         */
+        public Binder shape(String clause) {
+            shape.append(clause).append(';');
+            return this;
+        }
+
+        public String getShape() {
+            return shape.toString();
+        }
+
+        /**
+         * 把bind返回的值写为json 用于拼接builder不支持的字段
+         *
+         * @param boundValue
+         * @return
+         */
+        public String json(Object boundValue) {
+            StringBuilder sb = new StringBuilder();
+            writeValue(sb, boundValue);
+            return sb.toString();
+        }
+
+        /**
+         * 生成最终json
+         * 同一结构的查询只在第一次调用renderer渲染，之后直接填充模板
+         *
+         * @param shapeSuffix 本次渲染附加的结构信息
+         * @param renderer    渲染带占位符的json
+         * @return
+         */
+        public String render(String shapeSuffix, Supplier<String> renderer) {
+            if (direct) {
+                return renderer.get();
+            }
+            if (!cacheable) {
+                return compile(renderer.get()).fill(values);
+            }
+            String key = shapeSuffix == null ? shape.toString() : shape + "|" + shapeSuffix;
+            Cache<String, QueryTemplate> cache = templateCache;
+            QueryTemplate template = cache.getIfPresent(key);
+            if (template == null) {
+                template = compile(renderer.get());
+                cache.put(key, template);
+            }
+            return template.fill(values);
+        }
+    }
+
+    private static class RawJson {
+        private final String json;
+
+        RawJson(String json) {
+            this.json = json;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.chris.es.jest.utils;
+
+import com.google.gson.Gson;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.core.ClearScroll;
+import io.searchbox.core.Search;
+import io.searchbox.core.SearchResult;
+import io.searchbox.core.SearchScroll;
+import io.searchbox.params.Parameters;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Created by Chris Chen
+ * 2018/12/03
+ * Explain: 基于scroll的惰性迭代器
+ * 每次只持有一批数据，消费完才拉取下一批，遍历结束或close时清理scroll上下文
+ */
+
+public class ScrollIterator<T> implements Iterator<T>, Closeable {
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    public static final String DEFAULT_KEEP_ALIVE = "1m";
+
+    private final JestClient jestClient;
+    private final Gson gson;
+    private final Class<T> clazz;
+    private final String keepAlive;
+    private Search firstSearch;
+
+    private String scrollId;
+    private List<SearchResult.Hit<T, Void>> batch;
+    private int position;
+    private boolean finished;
+
+    /**
+     * @param jestClient
+     * @param query      完整的查询json 需包含size
+     * @param index
+     * @param type
+     * @param clazz
+     * @param keepAlive  scroll上下文保持时间 如 1m
+     */
+    public ScrollIterator(JestClient jestClient, String query, String index, String type, Class<T> clazz, String keepAlive) {
+        this.jestClient = jestClient;
+        this.gson = ESUtils.getGson(jestClient);
+        this.clazz = clazz;
+        this.keepAlive = keepAlive;
+        this.firstSearch = new Search.Builder(query)
+                .addIndex(index)
+                .addType(type)
+                .setParameter(Parameters.SCROLL, keepAlive)
+                .build();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (batch != null && position < batch.size()) {
+            return true;
+        }
+        if (finished) {
+            return false;
+        }
+        fetchNextBatch();
+        return batch != null && position < batch.size();
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return ESUtils.hitToEntity(batch.get(position++));
+    }
+
+    //拉取下一批 上一批的引用随即释放
+    private void fetchNextBatch() {
+        batch = null;
+        position = 0;
+        SearchResult result;
+        try {
+            if (firstSearch != null) {
+                result = jestClient.execute(firstSearch);
+                firstSearch = null;
+            } else {
+                result = toSearchResult(jestClient.execute(new SearchScroll.Builder(scrollId, keepAlive).build()));
+            }
+        } catch (IOException e) {
+            close();
+            throw new UncheckedIOException(e);
+        }
+        if (result == null || !result.isSucceeded()) {
+            String errorMessage = result == null ? null : result.getErrorMessage();
+            close();
+            throw new IllegalStateException("scroll查询失败: " + errorMessage);
+        }
+        if (result.getJsonObject().has("_scroll_id")) {
+            scrollId = result.getJsonObject().get("_scroll_id").getAsString();
+        }
+        List<SearchResult.Hit<T, Void>> hits = result.getHits(clazz);
+        if (hits == null || hits.isEmpty()) {
+            close();
+            return;
+        }
+        batch = hits;
+    }
+
+    //scroll请求返回的是JestResult 转成SearchResult以复用hit解析
+    private SearchResult toSearchResult(JestResult jestResult) {
+        SearchResult result = new SearchResult(gson);
+        result.setJsonString(jestResult.getJsonString());
+        result.setJsonObject(jestResult.getJsonObject());
+        result.setPathToResult("hits/hits/_source");
+        result.setResponseCode(jestResult.getResponseCode());
+        result.setSucceeded(jestResult.isSucceeded());
+        result.setErrorMessage(jestResult.getErrorMessage());
+        return result;
+    }
+
+    /**
+     * 清理scroll上下文 可重复调用
+     */
+    @Override
+    public void close() {
+        finished = true;
+        if (scrollId == null) {
+            return;
+        }
+        String id = scrollId;
+        scrollId = null;
+        try {
+            jestClient.execute(new ClearScroll.Builder().addScrollId(id).build());
+        } catch (IOException e) {
+            //上下文到期后ES会自动清理
+        }
+    }
+
+    /**
+     * 转为顺序流 流关闭时清理scroll上下文
+     *
+     * @return
+     */
+    public Stream<T> stream() {
+        Spliterator<T> spliterator = Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL);
+        return StreamSupport.stream(spliterator, false).onClose(this::close);
+    }
+}
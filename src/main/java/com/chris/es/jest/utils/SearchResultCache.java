@@ -0,0 +1,281 @@
+package com.chris.es.jest.utils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import io.searchbox.core.SearchResult;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by Chris Chen
+ * 2018/12/17
+ * Explain: 搜索结果缓存
+ * 以index、type和最终请求体为key缓存成功的SearchResult，按条数和写入后的存活时间淘汰
+ * 通过JestProcessor、JestBulkProcessor和ESUtils.update写入时清除对应index/type的缓存
+ * 清除只增加index/type的写入代数，条目记录缓存时的代数，代数不一致即视为失效
+ * update_by_query/delete_by_query任务进行中时不缓存对应index/type的结果，任务结束后清除
+ * 默认关闭，调用configure开启
+ */
+
+public class SearchResultCache {
+    private static volatile Cache<CacheKey, Entry> cache;
+    //写入代数 只增不减，按index/type记录，清除缓存只需要增加代数
+    private static final ConcurrentHashMap<String, AtomicLong> generations = new ConcurrentHashMap<>();
+    private static final String ANY_WRITE = "\u0000any";//任意写入
+    private static final String ALL = "\u0000all";//清除全部
+    private static final AtomicLong invalidationCount = new AtomicLong();
+    //进行中的后台任务数 与写入代数使用同样的key，没有任务时移除
+    private static final ConcurrentHashMap<String, Integer> runningTasks = new ConcurrentHashMap<>();
+
+    /**
+     * 开启缓存 重复调用会清空已有缓存
+     *
+     * @param maximumSize 最多缓存的结果数
+     * @param ttl         写入后的存活时间
+     * @param unit
+     */
+    public static synchronized void configure(long maximumSize, long ttl, TimeUnit unit) {
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl, unit)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * 关闭缓存
+     */
+    public static synchronized void disable() {
+        cache = null;
+    }
+
+    public static boolean isEnabled() {
+        return cache != null;
+    }
+
+    /**
+     * 当前的写入代数 在执行搜索前取得，搜索完成后传给put
+     * 搜索期间有写入时代数改变，结果不会被缓存
+     *
+     * @param index
+     * @param type
+     * @return
+     */
+    static long generation(String index, String type) {
+        //多index、通配符或没有index的搜索受任意写入影响
+        if (index == null || index.indexOf(',') >= 0 || index.indexOf('*') >= 0) {
+            return counter(ANY_WRITE);
+        }
+        //各计数只增不减 任一计数增加时总和一定改变
+        long generation = counter(ALL);
+        if (type == null) {
+            return generation + counter(index + ANY_WRITE);
+        }
+        return generation + counter(index + "/") + counter(index + "/" + type);
+    }
+
+    private static long counter(String key) {
+        AtomicLong counter = generations.get(key);
+        return counter == null ? 0 : counter.get();
+    }
+
+    private static void increment(String key) {
+        generations.computeIfAbsent(key, k -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * index/type上是否有进行中的后台任务 与generation的判断范围一致
+     *
+     * @param index
+     * @param type
+     * @return
+     */
+    static boolean isTaskRunning(String index, String type) {
+        if (runningTasks.isEmpty()) {
+            return false;
+        }
+        if (index == null || index.indexOf(',') >= 0 || index.indexOf('*') >= 0) {
+            return runningTasks.containsKey(ANY_WRITE);
+        }
+        if (runningTasks.containsKey(ALL)) {
+            return true;
+        }
+        if (type == null) {
+            return runningTasks.containsKey(index + ANY_WRITE);
+        }
+        return runningTasks.containsKey(index + "/") || runningTasks.containsKey(index + "/" + type);
+    }
+
+    /**
+     * 开始一个会修改index/type的后台任务 结束前该范围的搜索不读取也不写入缓存
+     * 必须与taskEnded成对调用
+     *
+     * @param index 为null时影响全部
+     * @param type  为null时影响整个index
+     */
+    static void taskStarted(String index, String type) {
+        for (String key : writeKeys(index, type)) {
+            runningTasks.merge(key, 1, Integer::sum);
+        }
+        //开始前已发出的搜索不再缓存
+        invalidate(index, type);
+    }
+
+    /**
+     * 后台任务结束 清除index/type下的缓存
+     *
+     * @param index
+     * @param type
+     */
+    static void taskEnded(String index, String type) {
+        for (String key : writeKeys(index, type)) {
+            runningTasks.computeIfPresent(key, (k, count) -> count > 1 ? count - 1 : null);
+        }
+        invalidate(index, type);
+    }
+
+    static SearchResult get(String index, String type, String body) {
+        Cache<CacheKey, Entry> current = cache;
+        if (current == null || isTaskRunning(index, type)) {
+            return null;
+        }
+        CacheKey key = new CacheKey(index, type, body);
+        Entry entry = current.getIfPresent(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.generation != generation(index, type)) {
+            //缓存后有写入 在读取时清除
+            current.asMap().remove(key, entry);
+            invalidationCount.incrementAndGet();
+            return null;
+        }
+        return entry.result;
+    }
+
+    /**
+     * 缓存搜索结果
+     *
+     * @param index
+     * @param type
+     * @param body
+     * @param result
+     * @param generation 执行搜索前取得的写入代数 与当前代数不同时不缓存
+     */
+    static void put(String index, String type, String body, SearchResult result, long generation) {
+        Cache<CacheKey, Entry> current = cache;
+        if (current == null || result == null || !result.isSucceeded() || generation != generation(index, type)
+                || isTaskRunning(index, type)) {
+            return;
+        }
+        //判断后发生的写入会使代数改变，该条目在读取时失效
+        current.put(new CacheKey(index, type, body), new Entry(result, generation));
+    }
+
+    /**
+     * 清除index/type下的缓存
+     * 只增加写入代数，相关条目在下一次读取时失效
+     *
+     * @param index 为null时清除全部
+     * @param type  为null时清除整个index
+     */
+    public static void invalidate(String index, String type) {
+        if (cache == null) {
+            return;
+        }
+        for (String key : writeKeys(index, type)) {
+            increment(key);
+        }
+    }
+
+    //写入index/type时需要增加的计数
+    private static String[] writeKeys(String index, String type) {
+        if (index == null) {
+            return new String[]{ANY_WRITE, ALL};
+        }
+        if (type == null) {
+            return new String[]{ANY_WRITE, index + ANY_WRITE, index + "/"};
+        }
+        return new String[]{ANY_WRITE, index + ANY_WRITE, index + "/" + type};
+    }
+
+    public static void invalidateAll() {
+        Cache<CacheKey, Entry> current = cache;
+        if (current != null) {
+            increment(ANY_WRITE);
+            increment(ALL);
+            invalidationCount.addAndGet(current.size());
+            current.invalidateAll();
+        }
+    }
+
+    /**
+     * 命中、未命中、淘汰次数
+     *
+     * @return 未开启时为null
+     */
+    public static CacheStats getStats() {
+        Cache<CacheKey, Entry> current = cache;
+        return current == null ? null : current.stats();
+    }
+
+    /**
+     * 因写入而失效的缓存条数 条目在读取时才被发现失效
+     *
+     * @return
+     */
+    public static long getInvalidationCount() {
+        return invalidationCount.get();
+    }
+
+    public static long size() {
+        Cache<CacheKey, Entry> current = cache;
+        return current == null ? 0 : current.size();
+    }
+
+    private static class Entry {
+        private final SearchResult result;
+        private final long generation;
+
+        Entry(SearchResult result, long generation) {
+            this.result = result;
+            this.generation = generation;
+        }
+    }
+
+    private static class CacheKey {
+        private final String index;
+        private final String type;
+        private final String body;
+        private final int hash;
+
+        CacheKey(String index, String type, String body) {
+            this.index = index;
+            this.type = type;
+            this.body = body;
+            this.hash = Objects.hash(index, type, body);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey that = (CacheKey) o;
+            return hash == that.hash && Objects.equals(index, that.index)
+                    && Objects.equals(type, that.type) && body.equals(that.body);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.chris.es.jest.utils;
+
+import io.searchbox.client.JestClient;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Created by Chris Chen
+ * 2018/12/05
+ * Explain: 并行分片scroll读取
+ * 把index/type切分为N个slice，每个slice在独立的工作线程上拉取
+ * 可以逐条回调(回调需线程安全)，也可以通过有界队列汇总为一个流
+ * 不指定executor时每次读取创建与slice数相同的线程池，读取结束后关闭
+ * JDK21以上可传入Executors.newVirtualThreadPerTaskExecutor()
+ */
+
+public class SlicedScrollReader<T> {
+    private final JestClient jestClient;
+    private final Class<T> clazz;
+    private String index;
+    private String type;
+    private int slices = Runtime.getRuntime().availableProcessors();
+    private int batchSize = ScrollIterator.DEFAULT_BATCH_SIZE;
+    private String keepAlive = ScrollIterator.DEFAULT_KEEP_ALIVE;
+    private Executor executor;
+
+    public SlicedScrollReader(JestClient jestClient, Class<T> clazz) {
+        this.jestClient = jestClient;
+        this.clazz = clazz;
+    }
+
+    public static <T> SlicedScrollReader<T> get(JestClient jestClient, Class<T> clazz) {
+        return new SlicedScrollReader<>(jestClient, clazz);
+    }
+
+    public SlicedScrollReader<T> setIndexAndType(String index, String type) {
+        this.index = index;
+        this.type = type;
+        return this;
+    }
+
+    public SlicedScrollReader<T> setSlices(int slices) {
+        if (slices > 0) {
+            this.slices = slices;
+        }
+        return this;
+    }
+
+    public SlicedScrollReader<T> setBatchSize(int batchSize) {
+        if (batchSize > 0) {
+            this.batchSize = batchSize;
+        }
+        return this;
+    }
+
+    public SlicedScrollReader<T> setKeepAlive(String keepAlive) {
+        this.keepAlive = keepAlive;
+        return this;
+    }
+
+    public SlicedScrollReader<T> setExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    public int getSlices() {
+        return slices;
+    }
+
+    /**
+     * 并行读取全部数据 阻塞直到所有slice读取完成
+     *
+     * @param consumer 参数为slice编号和数据 会被多个线程同时调用
+     * @return 读取的总条数
+     */
+    public long read(BiConsumer<Integer, ? super T> consumer) {
+        try {
+            return readAsync(consumer).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 并行读取全部数据
+     *
+     * @param consumer 参数为slice编号和数据 会被多个线程同时调用
+     * @return 所有slice完成后返回读取的总条数
+     */
+    public CompletableFuture<Long> readAsync(BiConsumer<Integer, ? super T> consumer) {
+        return readSlices(consumer, new AtomicBoolean(false));
+    }
+
+    /**
+     * 把所有slice的数据汇入有界队列，以一个流的形式消费
+     * 队列满时工作线程阻塞等待，内存占用不超过队列容量加上每个slice的一批数据
+     * 使用完毕需要关闭流，未读完时会停止所有slice
+     *
+     * @param queueCapacity 队列容量
+     * @return
+     */
+    public Stream<T> stream(int queueCapacity) {
+        BlockingQueue<Object> queue = new ArrayBlockingQueue<>(queueCapacity);
+        //cancelled停止所有slice(消费者关闭或某个slice失败)，closed只表示消费者已关闭
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        AtomicBoolean closed = new AtomicBoolean(false);
+        Object end = new Object();
+        CompletableFuture<Long> future = readSlices((slice, data) -> {
+            try {
+                while (!cancelled.get() && !queue.offer(data, 100, TimeUnit.MILLISECONDS)) {
+                    //等待消费者
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("读取被中断", e);
+            }
+        }, cancelled);
+        //结束标记(end或异常)必须送达消费者，除非消费者已关闭
+        future.whenComplete((count, throwable) -> {
+            Object marker = throwable == null ? end : throwable;
+            if (throwable != null) {
+                //失败时丢弃未消费的数据，保证异常能放入队列
+                queue.clear();
+            }
+            try {
+                while (!closed.get() && !queue.offer(marker, 100, TimeUnit.MILLISECONDS)) {
+                    if (throwable != null) {
+                        queue.clear();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        Iterator<T> iterator = new Iterator<T>() {
+            private Object next;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null) {
+                    try {
+                        next = queue.take();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        closed.set(true);
+                        cancelled.set(true);
+                        throw new IllegalStateException("读取被中断", e);
+                    }
+                }
+                if (next instanceof Throwable) {
+                    Throwable throwable = (Throwable) next;
+                    next = end;
+                    if (throwable instanceof CompletionException && throwable.getCause() != null) {
+                        throwable = throwable.getCause();
+                    }
+                    if (throwable instanceof RuntimeException) {
+                        throw (RuntimeException) throwable;
+                    }
+                    throw new IllegalStateException(throwable);
+                }
+                return next != end;
+            }
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                T data = (T) next;
+                next = null;
+                return data;
+            }
+        };
+        Spliterator<T> spliterator = Spliterators.spliteratorUnknownSize(iterator, Spliterator.NONNULL);
+        return StreamSupport.stream(spliterator, false).onClose(() -> {
+            closed.set(true);
+            cancelled.set(true);
+            queue.clear();
+        });
+    }
+
+    private CompletableFuture<Long> readSlices(BiConsumer<Integer, ? super T> consumer, AtomicBoolean cancelled) {
+        ExecutorService ownExecutor = executor == null ? Executors.newFixedThreadPool(slices) : null;
+        Executor workExecutor = executor == null ? ownExecutor : executor;
+        AtomicLong count = new AtomicLong();
+        List<CompletableFuture<Void>> futures = new ArrayList<>(slices);
+        for (int i = 0; i < slices; i++) {
+            int sliceId = i;
+            futures.add(CompletableFuture.runAsync(() -> readSlice(sliceId, consumer, count, cancelled), workExecutor));
+        }
+        CompletableFuture<Long> future = JestAsync.allOf(futures).thenApply(v -> count.get());
+        if (ownExecutor != null) {
+            future.whenComplete((c, throwable) -> ownExecutor.shutdown());
+        }
+        return future;
+    }
+
+    private void readSlice(int sliceId, BiConsumer<Integer, ? super T> consumer, AtomicLong count, AtomicBoolean cancelled) {
+        SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+        searchSourceBuilder.query(QueryBuilders.matchAllQuery())
+                .sort("_doc")
+                .size(batchSize);
+        String query = searchSourceBuilder.toString();
+        //slice数必须大于1
+        if (slices > 1) {
+            query = ESUtils.appendJsonField(query, "slice", "{\"id\":" + sliceId + ",\"max\":" + slices + "}");
+        }
+        try (ScrollIterator<T> iterator = new ScrollIterator<>(jestClient, query, index, type, clazz, keepAlive)) {
+            while (!cancelled.get() && iterator.hasNext()) {
+                consumer.accept(sliceId, iterator.next());
+                count.incrementAndGet();
+            }
+        } catch (RuntimeException e) {
+            cancelled.set(true);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.chris.es.jest.utils;
+
+import com.google.gson.Gson;
+import io.searchbox.action.Action;
+import io.searchbox.core.Search;
+import io.searchbox.core.SearchResult;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Created by Chris Chen
+ * 2018/12/24
+ * Explain: 流式解析hit的搜索请求
+ * 请求与被包装的Search完全相同，只替换响应的解析方式，见{@link StreamingSearchResult}
+ * 请求失败时按Search的方式解析错误信息
+ */
+
+public class StreamingSearch<T> implements Action<StreamingSearchResult<T>> {
+    private final Search search;
+    private final Class<T> clazz;
+    private final boolean mergeFields;
+
+    public StreamingSearch(Search search, Class<T> clazz) {
+        this(search, clazz, false);
+    }
+
+    /**
+     * @param search
+     * @param clazz
+     * @param mergeFields 是否把hit中的fields(docvalue/stored字段)合并到实体
+     */
+    public StreamingSearch(Search search, Class<T> clazz, boolean mergeFields) {
+        this.search = search;
+        this.clazz = clazz;
+        this.mergeFields = mergeFields;
+    }
+
+    @Override
+    public String getURI() {
+        return search.getURI();
+    }
+
+    @Override
+    public String getRestMethodName() {
+        return search.getRestMethodName();
+    }
+
+    @Override
+    public String getData(Gson gson) {
+        return search.getData(gson);
+    }
+
+    @Override
+    public String getPathToResult() {
+        return search.getPathToResult();
+    }
+
+    @Override
+    public Map<String, Object> getHeaders() {
+        return search.getHeaders();
+    }
+
+    @Override
+    public StreamingSearchResult<T> createNewElasticSearchResult(String responseBody, int statusCode, String reasonPhrase, Gson gson) {
+        StreamingSearchResult<T> result = new StreamingSearchResult<>(gson, clazz, mergeFields);
+        result.setResponseCode(statusCode);
+        result.setPathToResult(getPathToResult());
+        if (statusCode / 100 == 2 && responseBody != null) {
+            try {
+                result.parse(responseBody);
+                result.setSucceeded(true);
+                return result;
+            } catch (IOException | RuntimeException e) {
+                result.setErrorMessage("响应解析失败: " + e.getMessage());
+                result.setJsonString(responseBody);
+                result.setSucceeded(false);
+                return result;
+            }
+        }
+        SearchResult failed = search.createNewElasticSearchResult(responseBody, statusCode, reasonPhrase, gson);
+        result.setSucceeded(false);
+        result.setErrorMessage(failed.getErrorMessage());
+        result.setJsonString(responseBody);
+        return result;
+    }
+}
@@ -0,0 +1,177 @@
+package com.chris.es.jest.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import io.searchbox.client.JestResult;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Created by Chris Chen
+ * 2018/12/24
+ * Explain: 流式解析的搜索结果
+ * 用JsonReader逐个token读取响应体，_source直接绑定为实体并写入_id，不生成JsonObject树
+ * 成功时不保留响应体，只保留实体列表、总数、took和最后一条hit的sort值
+ * 需要合并fields时每条hit先读为JsonObject再绑定，仍然不生成整个响应的树
+ */
+
+public class StreamingSearchResult<T> extends JestResult {
+    private final Class<T> clazz;
+    private final boolean mergeFields;
+    private List<T> dataList = new ArrayList<>();
+    private long total;
+    private long took;
+    private String lastSort;//最后一条hit的sort 原始json
+    private int responseLength;
+
+    public StreamingSearchResult(Gson gson, Class<T> clazz) {
+        this(gson, clazz, false);
+    }
+
+    public StreamingSearchResult(Gson gson, Class<T> clazz, boolean mergeFields) {
+        super(gson);
+        this.clazz = clazz;
+        this.mergeFields = mergeFields;
+    }
+
+    /**
+     * 解析成功的响应体
+     *
+     * @param body
+     * @throws IOException json格式错误
+     */
+    void parse(String body) throws IOException {
+        responseLength = EsMetrics.utf8Length(body);
+        JsonReader reader = new JsonReader(new StringReader(body));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("took".equals(name)) {
+                took = reader.nextLong();
+            } else if ("hits".equals(name)) {
+                readHits(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readHits(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("total".equals(name)) {
+                total = readTotal(reader);
+            } else if ("hits".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    readHit(reader);
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    //ES7以上total为{"value":n,"relation":"eq"}
+    private static long readTotal(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            return reader.nextLong();
+        }
+        long value = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("value".equals(reader.nextName())) {
+                value = reader.nextLong();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return value;
+    }
+
+    private void readHit(JsonReader reader) throws IOException {
+        String id = null;
+        T source = null;
+        JsonElement sourceTree = null;
+        JsonElement fields = null;
+        String sort = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("_id".equals(name)) {
+                id = reader.nextString();
+            } else if ("_source".equals(name)) {
+                if (mergeFields) {
+                    sourceTree = new JsonParser().parse(reader);
+                } else {
+                    source = gson.fromJson(reader, clazz);
+                }
+            } else if (mergeFields && "fields".equals(name)) {
+                fields = new JsonParser().parse(reader);
+            } else if ("sort".equals(name)) {
+                JsonElement element = new JsonParser().parse(reader);
+                sort = element.toString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (mergeFields) {
+            source = gson.fromJson(ESUtils.mergeFields(sourceTree, fields), clazz);
+        } else if (source == null) {
+            //不返回_source时只有id
+            source = gson.fromJson("{}", clazz);
+        }
+        //_source可能在_id之前 读完整条hit后再写入id
+        EsIdBinder.bind(source, id);
+        if (source != null) {
+            dataList.add(source);
+        }
+        lastSort = sort;
+    }
+
+    public Class<T> getEntityClass() {
+        return clazz;
+    }
+
+    /**
+     * 转换后的实体
+     *
+     * @return 请求失败或没有数据时为空集合
+     */
+    public List<T> getDataList() {
+        return dataList;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public long getTook() {
+        return took;
+    }
+
+    public String getLastSort() {
+        return lastSort;
+    }
+
+    /**
+     * 响应体长度(UTF-8字节数)
+     *
+     * @return
+     */
+    public int getResponseLength() {
+        return responseLength;
+    }
+}
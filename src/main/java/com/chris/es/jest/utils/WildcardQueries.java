@@ -0,0 +1,229 @@
+package com.chris.es.jest.utils;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.indices.mapping.GetMapping;
+import org.elasticsearch.index.query.MatchQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Created by Chris Chen
+ * 2018/12/26
+ * Explain: 模糊匹配条件的查询方式选择
+ * 按通配符的位置把模糊条件改写为开销更小的查询:
+ * 没有通配符 -> term; 只有末尾的* -> prefix，分词字段可设置为match_phrase_prefix;
+ * 形如*abc*且字段有n-gram子字段 -> 在子字段上match;
+ * 其余(前导通配符、中间的通配符、转义字符)仍使用wildcard，严格模式下拒绝前导通配符
+ */
+
+public class WildcardQueries {
+    public enum Mode {
+        TERM, PREFIX, PHRASE_PREFIX, NGRAM, WILDCARD
+    }
+
+    //字段 -> n-gram子字段
+    private static final ConcurrentMap<String, String> NGRAM_FIELDS = new ConcurrentHashMap<>();
+    //尾部通配使用match_phrase_prefix的分词字段
+    private static final Set<String> PHRASE_PREFIX_FIELDS = ConcurrentHashMap.newKeySet();
+    private static volatile boolean strict;
+
+    public static boolean isStrict() {
+        return strict;
+    }
+
+    /**
+     * 严格模式下前导通配符(且无法改写为n-gram查询)的条件抛出IllegalArgumentException
+     *
+     * @param strict
+     */
+    public static void setStrict(boolean strict) {
+        WildcardQueries.strict = strict;
+    }
+
+    /**
+     * 设置字段的n-gram子字段 形如*abc*的条件在子字段上match
+     *
+     * @param fieldName
+     * @param ngramFieldName 完整字段名 如name.ngram，为null时移除
+     */
+    public static void setNgramField(String fieldName, String ngramFieldName) {
+        if (ngramFieldName == null) {
+            NGRAM_FIELDS.remove(fieldName);
+        } else {
+            NGRAM_FIELDS.put(fieldName, ngramFieldName);
+        }
+    }
+
+    /**
+     * 设置分词字段 形如abc*的条件使用match_phrase_prefix
+     *
+     * @param fieldName
+     * @param enabled
+     */
+    public static void setPhrasePrefixField(String fieldName, boolean enabled) {
+        if (enabled) {
+            PHRASE_PREFIX_FIELDS.add(fieldName);
+        } else {
+            PHRASE_PREFIX_FIELDS.remove(fieldName);
+        }
+    }
+
+    public static void clear() {
+        NGRAM_FIELDS.clear();
+        PHRASE_PREFIX_FIELDS.clear();
+    }
+
+    /**
+     * 从mapping中读取n-gram子字段 所有带有名为subFieldName的子字段的字段都注册为n-gram字段
+     *
+     * @param jestClient
+     * @param index
+     * @param type
+     * @param subFieldName 子字段名 如ngram
+     * @return 注册的字段数 请求失败时为-1
+     */
+    public static int loadNgramFields(JestClient jestClient, String index, String type, String subFieldName) {
+        GetMapping getMapping = new GetMapping.Builder().addIndex(index).addType(type).build();
+        try {
+            JestResult result = jestClient.execute(getMapping);
+            if (!result.isSucceeded()) {
+                return -1;
+            }
+            int count = 0;
+            for (Map.Entry<String, JsonElement> indexEntry : result.getJsonObject().entrySet()) {
+                JsonObject mappings = indexEntry.getValue().getAsJsonObject().getAsJsonObject("mappings");
+                if (mappings == null) {
+                    continue;
+                }
+                for (Map.Entry<String, JsonElement> typeEntry : mappings.entrySet()) {
+                    count += registerNgramFields(typeEntry.getValue().getAsJsonObject().getAsJsonObject("properties"), "", subFieldName);
+                }
+            }
+            return count;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return -1;
+    }
+
+    //递归查找带有子字段的属性 对象字段的属性名用.连接
+    private static int registerNgramFields(JsonObject properties, String prefix, String subFieldName) {
+        if (properties == null) {
+            return 0;
+        }
+        int count = 0;
+        for (Map.Entry<String, JsonElement> entry : properties.entrySet()) {
+            String fieldName = prefix + entry.getKey();
+            JsonObject property = entry.getValue().getAsJsonObject();
+            JsonObject fields = property.getAsJsonObject("fields");
+            if (fields != null && fields.has(subFieldName)) {
+                setNgramField(fieldName, fieldName + "." + subFieldName);
+                count++;
+            }
+            count += registerNgramFields(property.getAsJsonObject("properties"), fieldName + ".", subFieldName);
+        }
+        return count;
+    }
+
+    /**
+     * 判断模糊条件的查询方式
+     *
+     * @param fieldName
+     * @param pattern   带通配符的关键字
+     * @return
+     */
+    public static Mode classify(String fieldName, String pattern) {
+        if (pattern.indexOf('\\') >= 0) {
+            return Mode.WILDCARD;
+        }
+        int first = indexOfWildcard(pattern);
+        if (first < 0) {
+            return Mode.TERM;
+        }
+        int end = pattern.length();
+        while (end > 0 && pattern.charAt(end - 1) == '*') {
+            end--;
+        }
+        if (first > 0 && first == end) {
+            //只有末尾的*
+            return PHRASE_PREFIX_FIELDS.contains(fieldName) ? Mode.PHRASE_PREFIX : Mode.PREFIX;
+        }
+        if (first == 0 && pattern.charAt(0) == '*' && end < pattern.length()) {
+            int start = 0;
+            while (start < end && pattern.charAt(start) == '*') {
+                start++;
+            }
+            if (start < end && indexOfWildcard(pattern.substring(start, end)) < 0 && NGRAM_FIELDS.containsKey(fieldName)) {
+                return Mode.NGRAM;
+            }
+        }
+        return Mode.WILDCARD;
+    }
+
+    /**
+     * 构建模糊条件的查询 值通过binder绑定
+     *
+     * @param clause    条件类型 与查询方式一起作为模板结构
+     * @param fieldName
+     * @param pattern
+     * @param binder
+     * @return
+     * @throws IllegalArgumentException 严格模式下的前导通配符
+     */
+    static QueryBuilder build(String clause, String fieldName, String pattern, QueryTemplate.Binder binder) {
+        Mode mode = classify(fieldName, pattern);
+        switch (mode) {
+            case TERM:
+                return QueryBuilders.termQuery(fieldName, binder.bindString(clause + "_term", fieldName, pattern));
+            case PREFIX:
+                return QueryBuilders.prefixQuery(fieldName, binder.bindString(clause + "_prefix", fieldName, trim(pattern)));
+            case PHRASE_PREFIX:
+                return QueryBuilders.matchPhrasePrefixQuery(fieldName, binder.bindString(clause + "_phrase_prefix", fieldName, trim(pattern)));
+            case NGRAM:
+                String ngramFieldName = NGRAM_FIELDS.get(fieldName);
+                return QueryBuilders.matchQuery(ngramFieldName, binder.bindString(clause + "_ngram", ngramFieldName, trim(pattern)))
+                        .operator(MatchQueryBuilder.Operator.AND);
+            default:
+                if (strict && isLeadingWildcard(pattern)) {
+                    throw new IllegalArgumentException("严格模式下不允许前导通配符查询: " + fieldName + "=" + pattern);
+                }
+                return QueryBuilders.wildcardQuery(fieldName, binder.bindString(clause, fieldName, pattern));
+        }
+    }
+
+    private static boolean isLeadingWildcard(String pattern) {
+        return !pattern.isEmpty() && (pattern.charAt(0) == '*' || pattern.charAt(0) == '?');
+    }
+
+    private static int indexOfWildcard(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '*' || c == '?') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    //去掉首尾的*
+    private static String trim(String pattern) {
+        int start = 0;
+        int end = pattern.length();
+        while (start < end && pattern.charAt(start) == '*') {
+            start++;
+        }
+        while (end > start && pattern.charAt(end - 1) == '*') {
+            end--;
+        }
+        return pattern.substring(start, end);
+    }
+}
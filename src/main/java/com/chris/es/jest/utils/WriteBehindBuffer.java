@@ -0,0 +1,325 @@
+package com.chris.es.jest.utils;
+
+import com.chris.es.jest.model.WriteResult;
+import io.searchbox.client.JestClient;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Created by Chris Chen
+ * 2018/12/28
+ * Explain: 单条保存的写缓冲
+ * 调用线程只把文档放入有界队列，后台线程取出后交给{@link JestBulkProcessor}合并为bulk请求
+ * 队列满时按OverflowPolicy阻塞、丢弃或拒绝；未达到bulk条数的数据在linger时间后发出
+ * 设置到JestProcessor.getWriteBehindBuffer或JestUtil.setWriteBehindBuffer后，save改为经过缓冲写入
+ * 停止前调用close，发送剩余数据并等待请求完成
+ */
+
+public class WriteBehindBuffer implements Closeable {
+    public static final int DEFAULT_CAPACITY = 10000;
+    public static final long DEFAULT_LINGER_MILLIS = 100;
+    //默认bulk处理器最多保留的失败记录数
+    public static final int DEFAULT_MAX_FAILED_ITEMS = 1000;
+
+    /**
+     * 队列满时的处理方式
+     */
+    public enum OverflowPolicy {
+        BLOCK,//阻塞等待队列有空位
+        DROP,//丢弃该文档
+        FAIL//抛出RejectedExecutionException
+    }
+
+    private final JestClient jestClient;
+    private int capacity = DEFAULT_CAPACITY;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private long lingerNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_LINGER_MILLIS);
+    private JestBulkProcessor bulkProcessor;
+
+    //队列本身无界 通过size计数限制容量，入队不加锁
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    //只在取出队列时加锁 保证flush时已取出的数据都交给了bulk处理器
+    private final ReentrantLock drainLock = new ReentrantLock();
+    private volatile Thread drainThread;
+    private volatile boolean closed;
+    private long lastFlush = System.nanoTime();
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    public WriteBehindBuffer(JestClient jestClient) {
+        this.jestClient = jestClient;
+    }
+
+    public static WriteBehindBuffer get(JestClient jestClient) {
+        return new WriteBehindBuffer(jestClient);
+    }
+
+    /**
+     * 队列容量
+     *
+     * @param capacity
+     * @return
+     */
+    public WriteBehindBuffer setCapacity(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        return this;
+    }
+
+    public WriteBehindBuffer setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    /**
+     * 未达到bulk条数的数据最多等待的时间
+     *
+     * @param linger
+     * @param unit
+     * @return
+     */
+    public WriteBehindBuffer setLinger(long linger, TimeUnit unit) {
+        this.lingerNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(1), unit.toNanos(linger));
+        return this;
+    }
+
+    /**
+     * 使用指定的bulk处理器 用于调整切分大小、并发数和重试 需要在第一次写入前设置
+     * 处理器在缓冲的整个生命周期内使用，需要通过setMaxFailedItems限制保留的失败记录
+     *
+     * @param bulkProcessor
+     * @return
+     */
+    public WriteBehindBuffer setBulkProcessor(JestBulkProcessor bulkProcessor) {
+        this.bulkProcessor = bulkProcessor;
+        return this;
+    }
+
+    public JestBulkProcessor getBulkProcessor() {
+        return bulkProcessor;
+    }
+
+    /**
+     * 放入一个文档的保存请求
+     *
+     * @param entity
+     * @param index
+     * @param type
+     * @return 是否放入队列 DROP策略下队列满时为false
+     * @throws RejectedExecutionException FAIL策略下队列满
+     * @throws IllegalStateException      已关闭
+     */
+    public boolean add(Object entity, String index, String type) {
+        return offer(new Entry(entity, index, type, null));
+    }
+
+    /**
+     * 放入一个文档的保存请求 写入完成后确认
+     *
+     * @param entity
+     * @param index
+     * @param type
+     * @return 写入成功时为该记录的结果；写入失败时以IOException结束，DROP策略下被丢弃时以RejectedExecutionException结束
+     * @throws RejectedExecutionException FAIL策略下队列满
+     * @throws IllegalStateException      已关闭
+     */
+    public CompletableFuture<WriteResult> addWithAck(Object entity, String index, String type) {
+        CompletableFuture<WriteResult> ack = new CompletableFuture<>();
+        if (!offer(new Entry(entity, index, type, ack))) {
+            ack.completeExceptionally(new RejectedExecutionException("写缓冲已满: " + index + "/" + type));
+        }
+        return ack;
+    }
+
+    private boolean offer(Entry entry) {
+        if (closed) {
+            throw new IllegalStateException("写缓冲已关闭");
+        }
+        ensureStarted();
+        while (true) {
+            int current = size.get();
+            if (current < capacity) {
+                if (size.compareAndSet(current, current + 1)) {
+                    break;
+                }
+                continue;
+            }
+            switch (overflowPolicy) {
+                case DROP:
+                    droppedCount.incrementAndGet();
+                    return false;
+                case FAIL:
+                    throw new RejectedExecutionException("写缓冲已满: " + entry.index + "/" + entry.type);
+                default:
+                    LockSupport.unpark(drainThread);
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+                    if (closed) {
+                        throw new IllegalStateException("写缓冲已关闭");
+                    }
+            }
+        }
+        queue.offer(entry);
+        //关闭时最后一次取出可能已经结束 取回未被取出的数据
+        if (closed && queue.remove(entry)) {
+            size.decrementAndGet();
+            throw new IllegalStateException("写缓冲已关闭");
+        }
+        //攒够一个bulk时立即唤醒后台线程
+        int bulkActions = bulkProcessor.getBulkActions();
+        if (size.get() >= (bulkActions > 0 ? bulkActions : JestBulkProcessor.DEFAULT_BULK_ACTIONS)) {
+            LockSupport.unpark(drainThread);
+        }
+        return true;
+    }
+
+    private void ensureStarted() {
+        if (drainThread != null) {
+            return;
+        }
+        synchronized (this) {
+            if (drainThread != null) {
+                return;
+            }
+            if (bulkProcessor == null) {
+                bulkProcessor = JestBulkProcessor.get(jestClient).setMaxFailedItems(DEFAULT_MAX_FAILED_ITEMS);
+            }
+            Thread thread = new Thread(this::run, "jest-write-behind");
+            thread.setDaemon(true);
+            thread.start();
+            drainThread = thread;
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            drain(false);
+            LockSupport.parkNanos(this, lingerNanos);
+        }
+    }
+
+    //取出队列中的数据交给bulk处理器 达到linger时间或force时发送不满一批的数据
+    private void drain(boolean force) {
+        drainLock.lock();
+        try {
+            Entry entry;
+            while ((entry = queue.poll()) != null) {
+                size.decrementAndGet();
+                try {
+                    bulkProcessor.addDocument(entry.entity, entry.index, entry.type, entry.ack);
+                } catch (RuntimeException e) {
+                    //序列化失败等 不影响后续数据
+                    if (entry.ack != null) {
+                        entry.ack.completeExceptionally(e);
+                    } else {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            long now = System.nanoTime();
+            if (force || now - lastFlush >= lingerNanos) {
+                bulkProcessor.flush();
+                lastFlush = now;
+            }
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    /**
+     * 把队列中已有的数据全部发出 不等待请求完成
+     */
+    public void flush() {
+        if (drainThread == null) {
+            return;
+        }
+        drain(true);
+    }
+
+    /**
+     * 停止接收数据，发送剩余数据并等待所有请求完成
+     *
+     * @param timeout
+     * @param unit
+     * @return 是否在超时前全部完成
+     * @throws InterruptedException
+     */
+    public boolean awaitClose(long timeout, TimeUnit unit) throws InterruptedException {
+        if (closed) {
+            return true;
+        }
+        closed = true;
+        Thread thread;
+        synchronized (this) {
+            thread = drainThread;
+        }
+        if (thread == null) {
+            return true;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        LockSupport.unpark(thread);
+        thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+        drain(true);
+        return bulkProcessor.awaitClose(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 停止接收数据，发送剩余数据并等待所有请求完成
+     */
+    @Override
+    public void close() {
+        try {
+            awaitClose(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 队列中等待发送的文档数
+     *
+     * @return
+     */
+    public int getQueueSize() {
+        return size.get();
+    }
+
+    /**
+     * DROP策略下被丢弃的文档数
+     *
+     * @return
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * 写入失败的文档数 失败明细见getBulkProcessor().getFailedItems或setFailureListener
+     *
+     * @return
+     */
+    public long getFailedCount() {
+        return bulkProcessor == null ? 0 : bulkProcessor.getFailedCount();
+    }
+
+    private static class Entry {
+        private final Object entity;
+        private final String index;
+        private final String type;
+        private final CompletableFuture<WriteResult> ack;
+
+        private Entry(Object entity, String index, String type, CompletableFuture<WriteResult> ack) {
+            this.entity = entity;
+            this.index = index;
+            this.type = type;
+            this.ack = ack;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.chris.es.jest.utils;
+
+import com.chris.es.jest.model.EsSearchParams;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import io.searchbox.action.Action;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.client.JestResultHandler;
+import io.searchbox.core.Search;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created by Chris Chen
+ * 2018/12/28
+ * Explain: 模板渲染与直接渲染的请求体必须一致
+ * 同一结构先用一组值生成模板，再用另一组值走模板填充，与关闭模板时直接渲染的结果按json比较
+ */
+
+public class QueryTemplateTest {
+    //包含引号、反斜杠、中文和补充平面字符的值
+    private static final String SPECIAL = "a\"b\\c上海é😀";
+    //不含反斜杠的值 含反斜杠的模糊条件只能使用wildcard
+    private static final String QUOTED = "q\"u'o上海😀";
+
+    private final CapturingJestClient jestClient = new CapturingJestClient();
+
+    @Before
+    public void setUp() {
+        QueryTemplate.clear();
+        QueryTemplate.setEnabled(true);
+        WildcardQueries.clear();
+    }
+
+    @After
+    public void tearDown() {
+        QueryTemplate.clear();
+        QueryTemplate.setEnabled(true);
+        WildcardQueries.clear();
+    }
+
+    @Test
+    public void termsSet() {
+        assertSameRender(v -> params().addFieldIn("tags", values(v, "x")), false);
+        assertSameRender(v -> {
+            Set<Object> ids = new LinkedHashSet<>(Arrays.asList(v, 1L, 2, true));
+            return params().setTermsFieldMap(Collections.singletonMap("code", ids));
+        }, false);
+    }
+
+    @Test
+    public void exactValues() {
+        assertSameRender(v -> params().addFieldKV("name", v).addRangeField("age", 1, 99), false);
+    }
+
+    @Test
+    public void wildcardTerm() {
+        assertSameRender(v -> params().addMustWildcardField("name", v), QUOTED, "t\"2上海", false);
+    }
+
+    @Test
+    public void wildcardPrefix() {
+        assertSameRender(v -> params().addMustWildcardField("name", v + "*"), QUOTED, "p\"2上海", false);
+        WildcardQueries.setPhrasePrefixField("title", true);
+        assertSameRender(v -> params().addShouldWildcardField("title", v + "*"), QUOTED, "pp\"2上海", false);
+    }
+
+    @Test
+    public void wildcardNgram() {
+        WildcardQueries.setNgramField("name", "name.ngram");
+        assertSameRender(v -> params().addMustWildcardField("name", "*" + v + "*"), QUOTED, "n\"2上海", false);
+    }
+
+    @Test
+    public void wildcardFallback() {
+        assertSameRender(v -> params().addMustWildcardField("name", "*" + v + "?x"), false);
+        assertSameRender(v -> params().addShouldWildcardField("name", v + "\\*"), false);
+        assertSameRender(v -> params().addMultiWildcardFiel("*" + v, "name", "title"), false);
+    }
+
+    @Test
+    public void projection() {
+        assertSameRender(v -> params().addFieldKV("name", v).setProjection(Projection.class), false);
+        assertSameRender(v -> params().addFieldKV("name", v)
+                .setSourceIncludes("name", "ti\"tle")
+                .setSourceExcludes("secret")
+                .addDocValueField("age")
+                .addStoredField("raw"), false);
+        assertSameRender(v -> params().addFieldKV("name", v).setFetchSource(false), false);
+    }
+
+    @Test
+    public void cursor() {
+        assertSameRender(v -> params().addFieldKV("name", v).setSort("age", false).setSearchAfter(cursor(v)), true);
+    }
+
+    @Test
+    public void scoring() {
+        assertSameRender(v -> params().addFieldKV("name", v).addFieldIn("tags", values(v)).setScoring(true), false);
+        assertSameRender(v -> params().addFieldKV("name", v).addFieldIn("tags", values(v)).setScoring(false), false);
+    }
+
+    private void assertSameRender(Function<String, EsSearchParams> shape, boolean cursorMode) {
+        assertSameRender(shape, "prime", SPECIAL, cursorMode);
+    }
+
+    /**
+     * 先用primeValue生成模板，再分别用模板和直接渲染value
+     */
+    private void assertSameRender(Function<String, EsSearchParams> shape, String primeValue, String value, boolean cursorMode) {
+        QueryTemplate.clear();
+        QueryTemplate.setEnabled(true);
+        String primed = render(shape.apply(primeValue), cursorMode);
+        long cacheSize = QueryTemplate.getCacheSize();
+        assertTrue("结构未缓存: " + primed, cacheSize > 0);
+        String templated = render(shape.apply(value), cursorMode);
+        assertEquals("同一结构应复用模板", cacheSize, QueryTemplate.getCacheSize());
+        assertNotEquals(primed, templated);
+
+        QueryTemplate.setEnabled(false);
+        String direct = render(shape.apply(value), cursorMode);
+        QueryTemplate.setEnabled(true);
+
+        assertEquals(direct + "\n" + templated, parse(direct), parse(templated));
+    }
+
+    private String render(EsSearchParams params, boolean cursorMode) {
+        jestClient.body = null;
+        if (cursorMode) {
+            ESUtils.searchPageByCursor(jestClient, params, Map.class);
+        } else {
+            ESUtils.searchPage(jestClient, params, Map.class);
+        }
+        assertTrue("没有发出搜索请求", jestClient.body != null);
+        return jestClient.body;
+    }
+
+    private static EsSearchParams params() {
+        return new EsSearchParams().setIndexAndType("idx", "doc").setPageParams(1, 10);
+    }
+
+    private static Set<Object> values(String... values) {
+        return new LinkedHashSet<>(Arrays.asList(values));
+    }
+
+    private static String cursor(String value) {
+        StringBuilder sb = new StringBuilder("[1,");
+        QueryTemplate.writeString(sb, value);
+        sb.append(']');
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static JsonElement parse(String json) {
+        return new JsonParser().parse(json);
+    }
+
+    private static class Projection {
+        private String name;
+        private int age;
+    }
+
+    //记录搜索请求体并返回空结果
+    private static class CapturingJestClient implements JestClient {
+        private volatile String body;
+
+        @Override
+        public <T extends JestResult> T execute(Action<T> action) {
+            Gson gson = new Gson();
+            if (action instanceof Search) {
+                body = action.getData(gson);
+            }
+            return action.createNewElasticSearchResult("{\"took\":1,\"hits\":{\"total\":0,\"hits\":[]}}", 200, null, gson);
+        }
+
+        @Override
+        public <T extends JestResult> void executeAsync(Action<T> action, JestResultHandler<? super T> handler) {
+            handler.completed(execute(action));
+        }
+
+        @Override
+        public void shutdownClient() {
+        }
+
+        @Override
+        public void setServers(Set<String> servers) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}